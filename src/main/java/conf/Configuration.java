@@ -2,11 +2,19 @@ package conf;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
+import utils.ColumnarInstances;
+import utils.CostModel;
+import utils.ExecutionRuntime;
+import utils.RankAggregator;
+import utils.ResultCache;
+import utils.TaskJournal;
 import utils.Utils;
 import weka.attributeSelection.ASEvaluation;
 import weka.attributeSelection.ChiSquaredAttributeEval;
@@ -25,7 +33,16 @@ public class Configuration {
 	
 	public String m_fileSeparator;
 	public int    m_nThreads;
+	// Threads of the executors of the phases, 'm_nThreads' when 0: whatever
+	// their number, tasks run within the budget of 'm_nThreads' cores
+	public int    m_nThreadsFeatureSelection;
+	public int    m_nThreadsCrossValidation;
+	public int    m_nThreadsTestSet;
+	private ExecutionRuntime m_runtime = null;
 	public Random m_random;
+	// Seed of 'm_random', given or drawn from the clock
+	public long    m_randomSeed;
+	public boolean m_randomSeedGiven;
 	
 	public String[] m_datasetNames;
 	public int      m_nDatasets;
@@ -69,6 +86,80 @@ public class Configuration {
 	public boolean m_doFeatureSelection;
 	public boolean m_doCrossValidation;
 	
+	// Completed tasks are recorded in 'm_journalFile', in the base folder: when
+	// resuming, the ones recorded with the same inputs and outputs are skipped
+	public boolean m_resume;
+	public String  m_journalFile;
+	private TaskJournal m_journal = null;
+	
+	// Results of cross validation folds and test set evaluations are kept in
+	// 'm_resultCacheDir', if given, and reused by next runs
+	public String m_resultCacheDir;
+	private ResultCache m_resultCache = null;
+	
+	// Race the models of cross validation against the baseline, run by run:
+	// after 'm_racingMinRuns' runs the ones significantly worse than the
+	// baseline stop, the ones not better on average too with
+	// 'm_racingStopNotBetter', the ones significantly better too with
+	// 'm_racingStopWinners'
+	public boolean m_racing;
+	public int     m_racingMinRuns;
+	public boolean m_racingStopNotBetter;
+	public boolean m_racingStopWinners;
+	
+	// How models evaluated with retrain on the test set are brought up to date:
+	// retrained every 'm_retrainEvery' instances ("every"), within 'm_retrainTimeBudget'
+	// seconds ("time") or on drift ("drift"), updated if they can with 'm_retrainIncremental'.
+	// With 'm_retrainParallel' the models retrained every few instances are trained in parallel.
+	public String  m_retrainPolicy;
+	public int     m_retrainEvery;
+	public double  m_retrainTimeBudget;
+	public boolean m_retrainIncremental;
+	public boolean m_retrainParallel;
+	
+	// Split datasets reading them one row at a time, keeping
+	// at most 'm_splitSortBuffer' rows in memory while sorting
+	public boolean m_streamingSplit;
+	public int     m_splitSortBuffer;
+	
+	// Format of the datasets handed from one phase to the next: "binary"
+	// (columnar, fast to read and write) or "arff" (readable by humans)
+	public String m_intermediateFormat;
+	
+	// Wrappers keep the merits of at most 'm_subsetCacheSize' evaluated
+	// subsets, saved to 'm_subsetCacheFile' if given and reused by next runs
+	public int    m_subsetCacheSize;
+	public String m_subsetCacheFile;
+	
+	// Rows scored by each filter iteration: all of them ("none"), a bootstrap
+	// or a subsample of 'm_filterSubsampleRatio' of them
+	public String m_filterResampling;
+	public double m_filterSubsampleRatio;
+	
+	// Stop iterating filters and wrappers once their best features share at
+	// least 'm_earlyStoppingOverlap' of them with the previous iteration
+	// for 'm_earlyStoppingRounds' iterations in a row
+	public boolean m_earlyStopping;
+	public int     m_earlyStoppingRounds;
+	public double  m_earlyStoppingOverlap;
+	
+	// Order tasks queued on the executors run in: "longest_first", by their running
+	// time predicted from 'm_costHistoryFile' (in the base folder), or "fifo". 
+	// With 'm_dryRun' the predicted plan is printed and nothing runs.
+	public String  m_scheduling;
+	public String  m_costHistoryFile;
+	public boolean m_dryRun;
+	private CostModel m_costModel = null;
+	
+	// How rankings of filters and wrappers are aggregated, one of RankAggregator.METHODS
+	public String m_rankAggregation;
+	public double m_rankAggregationRrfK;
+	public double m_rankAggregationTrim;
+	
+	public String datasetExtension() {
+		return m_intermediateFormat.equals("arff") ? ".arff" : ColumnarInstances.EXTENSION;
+	}
+	
 	public String crossValidationSelectedDatasetPath() {
 		final String[] pathTokens = {m_baseFolder, m_crossValidationFolder, m_datasetFolder, ""};
 		return Utils.join(pathTokens, m_fileSeparator);
@@ -79,10 +170,80 @@ public class Configuration {
 		return Utils.join(pathTokens, m_fileSeparator);
 	}
 	
+	// Journal shared by all the phases, opened by the first one using it. It must
+	// be opened before drawing random numbers: without a given seed, a resumed 
+	// run restores the seed of the run it resumes, so its tasks are the same.
+	public synchronized TaskJournal journal() throws IOException {
+		if (m_journal == null) {
+			m_journal = new TaskJournal(new File(m_baseFolder + m_fileSeparator + m_journalFile), m_resume);
+			final String seed = m_journal.payload(SEED_KEY);
+			if (seed != null && !m_randomSeedGiven) {
+				m_randomSeed = Long.parseLong(seed);
+				m_random = new Random(m_randomSeed);
+			} else {
+				m_journal.record(SEED_KEY, Long.toString(m_randomSeed));
+			}
+		}
+		return m_journal;
+	}
+	
+	private static final String SEED_KEY = "random_seed";
+	
+	// Cache shared by all the phases, null when not configured
+	public synchronized ResultCache resultCache() {
+		if (m_resultCache == null && m_resultCacheDir != null) {
+			m_resultCache = new ResultCache(new File(m_resultCacheDir));
+		}
+		return m_resultCache;
+	}
+	
+	// Predictions of running times shared by all the phases
+	public synchronized CostModel costModel() {
+		if (m_costModel == null) {
+			m_costModel = new CostModel(m_costHistoryFile == null ? null : 
+				new File(m_baseFolder + m_fileSeparator + m_costHistoryFile));
+		}
+		return m_costModel;
+	}
+	
+	// Threads and cores shared by all the phases
+	public synchronized ExecutionRuntime runtime() {
+		if (m_runtime == null) {m_runtime = new ExecutionRuntime(m_nThreads);}
+		return m_runtime;
+	}
+	
+	// Releases the runtime and the journal, if some phase used them: the
+	// journal keeps what was recorded even when the analysis fails
+	public synchronized void close() throws IOException {
+		if (m_runtime != null) {m_runtime.shutdown();}
+		if (m_journal != null) {m_journal.close();}
+	}
+	
+	// Threads of the executor of a phase, given its own number of threads
+	public int phaseThreads(final int nThreads) {
+		return nThreads > 0 ? nThreads : m_nThreads;
+	}
+	
+	// Executor of a phase, running its tasks in the order chosen by 'm_scheduling'
+	public ExecutorService newExecutor(final int nThreads) {
+		return runtime().newExecutor(phaseThreads(nThreads), !m_scheduling.equals("fifo"));
+	}
+	
+	// A baseline ignoring the features (as ZeroR does) gives the same results
+	// on every feature subset of a dataset, so it can be evaluated once per dataset.
+	public boolean baselineIgnoresFeatures() {
+		return m_baselineClassifier instanceof ZeroR;
+	}
+	
 	private void setDefaultParameters() {
 		m_fileSeparator = File.separator;
 		m_nThreads  = Runtime.getRuntime().availableProcessors();
-		m_random    = new Random(System.currentTimeMillis());
+		m_nThreadsFeatureSelection = 0;
+		m_nThreadsCrossValidation  = 0;
+		m_nThreadsTestSet          = 0;
+		m_randomSeed      = System.currentTimeMillis();
+		m_randomSeedGiven = false;
+		m_random    = new Random(m_randomSeed);
 				
 		m_datasetNames = null;
 		m_nDatasets    = 0;
@@ -123,6 +284,43 @@ public class Configuration {
 		
 		m_doFeatureSelection = true;
 		m_doCrossValidation  = true;
+		m_resume             = false;
+		m_journalFile        = "journal.log";
+		m_resultCacheDir     = null;
+		
+		m_racing              = false;
+		m_racingMinRuns       = 2;
+		m_racingStopNotBetter = false;
+		m_racingStopWinners   = false;
+		
+		m_retrainPolicy      = "every";
+		m_retrainEvery       = 1;
+		m_retrainTimeBudget  = 60;
+		m_retrainIncremental = false;
+		m_retrainParallel    = true;
+		
+		m_streamingSplit  = false;
+		m_splitSortBuffer = 100000;
+		
+		m_intermediateFormat = "binary";
+		
+		m_subsetCacheSize = 100000;
+		m_subsetCacheFile = null;
+		
+		m_filterResampling     = "none";
+		m_filterSubsampleRatio = 0.5;
+		
+		m_earlyStopping        = false;
+		m_earlyStoppingRounds  = 3;
+		m_earlyStoppingOverlap = 1.0;
+		
+		m_scheduling      = "longest_first";
+		m_costHistoryFile = "cost_history.log";
+		m_dryRun          = false;
+		
+		m_rankAggregation     = "mean";
+		m_rankAggregationRrfK = 60;
+		m_rankAggregationTrim = 0.1;
 	}
 	
 	private void setDefaultClassifiers() {
@@ -241,12 +439,137 @@ public class Configuration {
 	    		case "reuse_cross_validation":
 	    			m_doCrossValidation = !value.equals("true");
 	    			break;
+	    		case "resume":
+	    			m_resume = value.equals("true");
+	    			break;
+	    		case "journal_file":
+	    			m_journalFile = value;
+	    			break;
+	    		case "result_cache_dir":
+	    			m_resultCacheDir = value.isEmpty() ? null : value;
+	    			break;
+	    		case "racing":
+	    			m_racing = value.equals("true");
+	    			break;
+	    		case "racing_min_runs":
+	    			m_racingMinRuns = Integer.parseInt(value);
+	    			if (m_racingMinRuns < 1) {
+	    				throw new Exception("'racing_min_runs' must be at least 1.");
+	    			}
+	    			break;
+	    		case "racing_stop_not_better":
+	    			m_racingStopNotBetter = value.equals("true");
+	    			break;
+	    		case "racing_stop_winners":
+	    			m_racingStopWinners = value.equals("true");
+	    			break;
+	    		case "retrain_policy":
+	    			if (!value.equals("every") && !value.equals("time") && !value.equals("drift")) {
+	    				throw new Exception("Unrecognized 'retrain_policy' " + value + ", expected every, time or drift.");
+	    			}
+	    			m_retrainPolicy = value;
+	    			break;
+	    		case "retrain_every":
+	    			m_retrainEvery = Integer.parseInt(value);
+	    			if (m_retrainEvery < 1) {
+	    				throw new Exception("'retrain_every' must be at least 1.");
+	    			}
+	    			break;
+	    		case "retrain_time_budget":
+	    			m_retrainTimeBudget = Double.parseDouble(value);
+	    			break;
+	    		case "retrain_incremental":
+	    			m_retrainIncremental = value.equals("true");
+	    			break;
+	    		case "retrain_parallel":
+	    			m_retrainParallel = value.equals("true");
+	    			break;
+	    		case "streaming_split":
+	    			m_streamingSplit = value.equals("true");
+	    			break;
+	    		case "split_sort_buffer":
+	    			m_splitSortBuffer = Integer.parseInt(value);
+	    			break;
+	    		case "intermediate_format":
+	    			if (!value.equals("binary") && !value.equals("arff")) {
+	    				throw new Exception("Unrecognized 'intermediate_format' " + value + ", expected binary or arff.");
+	    			}
+	    			m_intermediateFormat = value;
+	    			break;
+	    		case "subset_cache_size":
+	    			m_subsetCacheSize = Integer.parseInt(value);
+	    			break;
+	    		case "subset_cache_file":
+	    			m_subsetCacheFile = value;
+	    			break;
+	    		case "filter_resampling":
+	    			if (!value.equals("none") && !value.equals("bootstrap") && !value.equals("subsample")) {
+	    				throw new Exception("Unrecognized 'filter_resampling' " + value + ", expected none, bootstrap or subsample.");
+	    			}
+	    			m_filterResampling = value;
+	    			break;
+	    		case "filter_subsample_ratio":
+	    			m_filterSubsampleRatio = Double.parseDouble(value);
+	    			if (m_filterSubsampleRatio <= 0 || m_filterSubsampleRatio > 1) {
+	    				throw new Exception("'filter_subsample_ratio' must be greater than 0 and at most 1.");
+	    			}
+	    			break;
+	    		case "early_stopping":
+	    			m_earlyStopping = value.equals("true");
+	    			break;
+	    		case "early_stopping_rounds":
+	    			m_earlyStoppingRounds = Integer.parseInt(value);
+	    			break;
+	    		case "early_stopping_overlap":
+	    			m_earlyStoppingOverlap = Double.parseDouble(value);
+	    			break;
+	    		case "rank_aggregation":
+	    			if (!Arrays.asList(RankAggregator.METHODS).contains(value)) {
+	    				throw new Exception("Unrecognized 'rank_aggregation' " + value + ", expected one of " + Arrays.toString(RankAggregator.METHODS) + ".");
+	    			}
+	    			m_rankAggregation = value;
+	    			break;
+	    		case "rank_aggregation_rrf_k":
+	    			m_rankAggregationRrfK = Double.parseDouble(value);
+	    			break;
+	    		case "rank_aggregation_trim":
+	    			m_rankAggregationTrim = Double.parseDouble(value);
+	    			if (m_rankAggregationTrim < 0 || m_rankAggregationTrim >= 0.5) {
+	    				throw new Exception("'rank_aggregation_trim' must be at least 0 and less than 0.5.");
+	    			}
+	    			break;
+	    		case "scheduling":
+	    			if (!value.equals("longest_first") && !value.equals("fifo")) {
+	    				throw new Exception("Unrecognized 'scheduling' " + value + ", expected longest_first or fifo.");
+	    			}
+	    			m_scheduling = value;
+	    			break;
+	    		case "cost_history_file":
+	    			m_costHistoryFile = value.isEmpty() ? null : value;
+	    			break;
+	    		case "dry_run":
+	    			m_dryRun = value.equals("true");
+	    			break;
+	    		case "random_seed":
+	    			m_randomSeed      = Long.parseLong(value);
+	    			m_randomSeedGiven = true;
+	    			m_random = new Random(m_randomSeed);
+	    			break;
 		    	case "separator":  
 		    		m_fileSeparator = value;
 		    		break;
 		    	case "n_threads":  
 	    			m_nThreads = Integer.parseInt(value);
 		    		break;
+		    	case "n_threads_feature_selection":
+		    		m_nThreadsFeatureSelection = Integer.parseInt(value);
+		    		break;
+		    	case "n_threads_cross_validation":
+		    		m_nThreadsCrossValidation = Integer.parseInt(value);
+		    		break;
+		    	case "n_threads_test_set":
+		    		m_nThreadsTestSet = Integer.parseInt(value);
+		    		break;
 		    	case "datasets":  
 		    		values = value.split(",");
 		    		nValues = values.length;
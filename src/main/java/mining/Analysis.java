@@ -21,15 +21,25 @@ public class Analysis {
 		}
 		
 		final Configuration conf = new Configuration(confFilePath);
-		final DatasetSplitter sp = new DatasetSplitter(conf);
-		
-		sp.buildDatasets();
-		if (conf.m_doFeatureSelection) {
-			new FeatureSelection(conf).selection();
-		} else {
-			System.out.println("WARNING: reusing previous feature selection results");
+		// Before the splitter, which empties the folders of the phases
+		if (conf.m_dryRun) {
+			new CostEstimator(conf).plan();
+			return;
 		}
-		sp.datasetAttributesFromReference();
-		new ModelSelection(conf).selection();
+		try {
+			final DatasetSplitter sp = new DatasetSplitter(conf);
+			
+			sp.buildDatasets();
+			if (conf.m_doFeatureSelection) {
+				new FeatureSelection(conf).selection();
+			} else {
+				System.out.println("WARNING: reusing previous feature selection results");
+			}
+			sp.datasetAttributesFromReference();
+			new ModelSelection(conf).selection();
+			if (conf.resultCache() != null) {System.out.println(conf.resultCache());}
+			conf.costModel().save();
+			System.out.println(conf.costModel());
+		} finally {conf.close();}
 	}
 }
@@ -0,0 +1,224 @@
+package mining;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import conf.Configuration;
+
+import utils.CostModel;
+import utils.TaskJournal;
+import utils.Utils;
+import weka.attributeSelection.ASEvaluation;
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+// Predicted running times of the tasks of every phase, from the rows and
+// features of their datasets, the evaluators and classifiers they run, folds
+// and iterations, and the times of the tasks of earlier runs (see CostModel).
+// Phases queue their tasks with these predictions, so that the longest run
+// first, and time them for the predictions of next runs.
+// The dry run plan lists the tasks of every phase before anything runs,
+// sizing the datasets by their slices: every number of features is counted
+// as a cross validation experiment of its own, and every classifier as a
+// winner, so its total time is an upper bound.
+public class CostEstimator {
+
+	final Configuration m_conf;
+	final CostModel     m_model;
+
+	public CostEstimator(final Configuration conf) {
+		m_conf  = conf;
+		m_model = conf.costModel();
+	}
+
+	// A filter goes through every row for every feature
+	CostModel.Cost filter(final ASEvaluation filter, final int rows, final int features) {
+		return m_model.cost("filter", filter, CostModel.work(filter, rows, features));
+	}
+
+	// The stepwise search of a wrapper ranking 'features' features evaluates
+	// f (f + 1) / 2 subsets, each by a 5 fold cross validation of its classifier
+	// on half of the features on average
+	CostModel.Cost wrapper(final Classifier wrapper, final int rows, final int features) {
+		final double nSubsets = features * (features + 1) / 2.0;
+		return m_model.cost("wrapper", wrapper, nSubsets * 5 * CostModel.work(wrapper, rows * 0.8, features / 2.0));
+	}
+
+	// A unit trains on every fold but one
+	CostModel.Cost crossValidation(final Classifier model, final int rows, final int features) {
+		final int nFolds = m_conf.m_crossValidationFolds;
+		return m_model.cost("cross-validation", model, CostModel.work(model, rows * (nFolds - 1.0) / nFolds, features));
+	}
+
+	// Without retrain a model is trained once
+	CostModel.Cost noRetrain(final Classifier model, final int trainRows, final int features) {
+		return m_model.cost("test-set", model, CostModel.work(model, trainRows, features));
+	}
+
+	// With retrain a model is trained once per step, on half of the test set
+	// more on average, or once when updated with the test instances instead.
+	// Retraining by time or drift is counted as retraining before every
+	// instance: the times recorded scale it down to what it takes.
+	CostModel.Cost retrain(final Classifier model, final int trainRows, final int testRows, final int features) {
+		final double nTrainings;
+		if (m_conf.m_retrainIncremental && model instanceof UpdateableClassifier) {
+			nTrainings = 1;
+		} else if (m_conf.m_retrainPolicy.equals("every")) {
+			nTrainings = Math.ceil(testRows / (double) m_conf.m_retrainEvery);
+		} else {
+			nTrainings = testRows;
+		}
+		return m_model.cost("retrain", model, nTrainings * CostModel.work(model, trainRows + testRows / 2.0, features));
+	}
+
+	// Tasks of a phase doing the same on the same dataset
+	private static class Tasks {
+		final String m_phase;
+		final String m_dataset;
+		final String m_scheme;
+		final int    m_count;
+		final double m_seconds;
+
+		Tasks(final String phase, final String dataset, final Object scheme, final int count, final double seconds) {
+			m_phase   = phase;
+			m_dataset = dataset;
+			m_scheme  = TaskJournal.spec(scheme);
+			m_count   = count;
+			m_seconds = seconds;
+		}
+	}
+
+	// Rows of the phases and features of a dataset, as the splitter would make them
+	private int[] size(final String dataset) throws Exception {
+		final String[] pathTokens = {m_conf.m_baseFolder, m_conf.m_datasetFolder, m_conf.m_datasetFolder, dataset + ".arff"};
+		final ArffLoader loader = new ArffLoader();
+		loader.setSource(new File(Utils.join(pathTokens, m_conf.m_fileSeparator)));
+		final Instances structure = loader.getStructure();
+		final Attribute slice = structure.attribute(m_conf.m_sliceAttributeName);
+		if (slice == null) {throw new Exception("Slice attribute not found in dataset " + dataset);}
+
+		final String[][] phasesSlices = {
+				m_conf.m_featureSelectionDatasetSlices != null ? m_conf.m_featureSelectionDatasetSlices : new String[0],
+				m_conf.m_crossValidationDatasetSlices  != null ? m_conf.m_crossValidationDatasetSlices  : new String[0],
+				m_conf.m_testSetDatasetSlices};
+		final int[] size = new int[4];
+		Instance in = loader.getNextInstance(structure);
+		while (in != null) {
+			final String sliceName = in.toString(slice);
+			for (int p = 0; p < phasesSlices.length; p++) {
+				if (Arrays.asList(phasesSlices[p]).contains(sliceName)) {size[p]++;}
+			}
+			in = loader.getNextInstance(structure);
+		}
+		// Sort, slice and removed attributes are not features, nor is the class
+		int nFeatures = structure.numAttributes() - 3;
+		for (final String removed : m_conf.m_attributesToRemove) {
+			if (structure.attribute(removed) != null) {nFeatures--;}
+		}
+		size[3] = nFeatures;
+		return size;
+	}
+
+	// Elapsed seconds of running tasks on the threads of a phase, the longest
+	// first, at most as many at a time as the cores of the runtime
+	private double makespan(final List<Double> seconds, final int nThreads) {
+		Collections.sort(seconds, Collections.reverseOrder());
+		final PriorityQueue<Double> threads = new PriorityQueue<Double>();
+		final int nRunning = Math.min(m_conf.phaseThreads(nThreads), m_conf.m_nThreads);
+		for (int t = 0; t < nRunning; t++) {threads.add(0.0);}
+		double makespan = 0;
+		for (final double task : seconds) {
+			final double end = threads.poll() + task;
+			threads.add(end);
+			makespan = Math.max(makespan, end);
+		}
+		return makespan;
+	}
+
+	private static String format(final double seconds) {
+		return String.format("%.2f s", seconds);
+	}
+
+	// Prints the predicted tasks of every phase and the time they take
+	public void plan() throws Exception {
+		final int nFolds = m_conf.m_crossValidationFolds;
+		final int nRuns  = m_conf.m_crossValidationIterations;
+		final int[] nFeaturesSets = m_conf.m_featureSelectionNFeatures;
+		final List<Tasks> tasks = new ArrayList<Tasks>();
+		for (final String dataset : m_conf.m_datasetNames) {
+			final int[] size = size(dataset);
+			System.out.println(dataset + ": " + size[3] + " features, " + size[0] + " rows for feature selection, "
+					+ size[1] + " for cross validation, " + size[2] + " for the test set");
+			// Features ranked by the wrappers, after the filters
+			final int nRanked = m_conf.m_nFilters > 0 ? Math.min(m_conf.m_nMaxFeatures, size[3]) : size[3];
+
+			if (m_conf.m_doFeatureSelection) {
+				final boolean resamples = !m_conf.m_filterResampling.equals("none");
+				for (final ASEvaluation filter : m_conf.m_filters) {
+					final int count = FilterEngine.handles(filter) && !resamples ? 1 : m_conf.m_featureSelectionIterations;
+					tasks.add(new Tasks("filter", dataset, filter, count, filter(filter, size[0], size[3]).seconds()));
+				}
+				for (final Classifier wrapper : m_conf.m_wrappers) {
+					tasks.add(new Tasks("wrapper", dataset, wrapper, m_conf.m_featureSelectionIterations,
+							wrapper(wrapper, size[0], nRanked).seconds()));
+				}
+			}
+			for (final int n : nFeaturesSets) {
+				final int features = Math.min(n, nRanked);
+				final List<Classifier> models = new ArrayList<Classifier>(m_conf.m_classifiers);
+				models.add(0, m_conf.m_baselineClassifier);
+				if (m_conf.m_doCrossValidation) {
+					for (final Classifier model : models) {
+						tasks.add(new Tasks("cross-validation", dataset + "_features" + n, model, nRuns * nFolds,
+								crossValidation(model, size[1], features).seconds()));
+					}
+				}
+				// Every classifier with the baseline, which is shared by all of them
+				for (final Classifier model : models) {
+					final double seconds = model == m_conf.m_baselineClassifier ? noRetrain(model, size[1], features).seconds() :
+							noRetrain(model, size[1], features).seconds() + retrain(model, size[1], size[2], features).seconds();
+					tasks.add(new Tasks("test-set", dataset + "_features" + n, model, 1, seconds));
+				}
+			}
+		}
+
+		// Phases run one after the other, the tasks of each one the longest first
+		final String[] phases = {"filter", "wrapper", "cross-validation", "test-set"};
+		final int[] phasesThreads = {m_conf.m_nThreadsFeatureSelection, m_conf.m_nThreadsFeatureSelection,
+				m_conf.m_nThreadsCrossValidation, m_conf.m_nThreadsTestSet};
+		final Map<String, List<Double>> phaseTasks = new HashMap<String, List<Double>>();
+		for (final String phase : phases) {phaseTasks.put(phase, new ArrayList<Double>());}
+		Collections.sort(tasks, new Comparator<Tasks>() {
+			public int compare(final Tasks a, final Tasks b) {return Double.compare(b.m_seconds, a.m_seconds);}
+		});
+		System.out.println("Predicted plan on " + m_conf.m_nThreads + " cores, " + m_conf.m_scheduling + ":");
+		for (final Tasks t : tasks) {
+			System.out.println(String.format("%-16s %-40s %5d x %10s  %s",
+					t.m_phase, t.m_dataset, t.m_count, format(t.m_seconds), t.m_scheme));
+			for (int i = 0; i < t.m_count; i++) {phaseTasks.get(t.m_phase).add(t.m_seconds);}
+		}
+		double total = 0;
+		for (int p = 0; p < phases.length; p++) {
+			final String phase = phases[p];
+			final List<Double> seconds = phaseTasks.get(phase);
+			if (seconds.isEmpty()) {continue;}
+			double work = 0;
+			for (final double s : seconds) {work += s;}
+			final double elapsed = makespan(seconds, phasesThreads[p]);
+			total += elapsed;
+			System.out.println(phase + ": " + seconds.size() + " tasks, " + format(work) + " of work, " + format(elapsed) + " elapsed");
+		}
+		System.out.println("Predicted total time: " + format(total));
+	}
+}
@@ -0,0 +1,438 @@
+package mining;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.CostModel;
+import utils.IndexedInstances;
+import utils.ExecutionRuntime;
+import utils.ResultCache;
+import utils.SubsetMeritCache;
+import utils.TaskJournal;
+import weka.classifiers.Classifier;
+import weka.core.AdditionalMeasureProducer;
+import weka.core.Instances;
+import weka.experiment.ClassifierSplitEvaluator;
+import weka.experiment.PairedStats;
+import weka.experiment.CrossValidationResultProducer;
+import weka.experiment.InstancesResultListener;
+
+// Native replacement for Weka's Experiment in cross validation.
+// Weka runs an entire experiment (every classifier, every run, every fold)
+// on a single thread. Here the experiment is split into independent
+// (classifier, run, fold) units queued on the shared executor, so the
+// number of busy cores grows with the amount of work and not with the
+// number of experiments.
+// Folds come from the shared FoldPartitions service, which builds them exactly
+// the way CrossValidationResultProducer does, and results are handed to an InstancesResultListener in the same order
+// Weka's Experiment would produce them, so result files are unchanged.
+// With a ResultCache, the result of every unit is looked up there by the content
+// of its dataset, its classifier (options and version), run, seed and fold,
+// and stored once computed.
+// With a Race, runs are queued one at a time instead, and models whose race
+// against the baseline is over on a dataset are not run on it anymore.
+// Units are queued with the running time predicted for their model on their
+// dataset, and the time they take is recorded for the next predictions.
+public class CrossValidationEngine {
+
+	final ExecutorService m_threadExecutor;
+	final FoldPartitions  m_partitions;
+
+	final int m_nRuns;
+	final int m_nFolds;
+
+	// When the first model of every experiment is a baseline which ignores
+	// features, its fold results are computed once per dataset and reused
+	// by every experiment on the same folds.
+	final boolean m_shareBaseline;
+	final ConcurrentHashMap<String, FutureTask<Object[]>> m_baselineResults =
+			new ConcurrentHashMap<String, FutureTask<Object[]>>();
+	
+	// Results of previous runs, null when not used
+	final ResultCache m_cache;
+	
+	// Race of the models against the baseline, null when every model does every run
+	final Race m_race;
+	
+	final CostEstimator m_costs;
+	// Cores units take while they run, one each
+	final ExecutionRuntime m_runtime;
+
+	public CrossValidationEngine(
+			final ExecutorService threadExecutor,
+			final FoldPartitions partitions,
+			final int nRuns,
+			final int nFolds,
+			final boolean shareBaseline,
+			final ResultCache cache,
+			final Race race,
+			final CostEstimator costs,
+			final ExecutionRuntime runtime) {
+		m_threadExecutor = threadExecutor;
+		m_partitions     = partitions;
+		m_nRuns  = nRuns;
+		m_nFolds = nFolds;
+		m_shareBaseline = shareBaseline;
+		m_cache = cache;
+		m_race  = race;
+		m_costs = costs;
+		m_runtime = runtime;
+	}
+
+	// Folds of a dataset for one run. Rows are assigned to folds by the shared
+	// partition service, training and test sets are views over the dataset.
+	private class RunSplit {
+		final Instances                m_data;
+		final FoldPartitions.Partition m_partition;
+
+		RunSplit(final Instances data, final int run) throws Exception {
+			m_data      = data;
+			m_partition = m_partitions.get(data, run);
+		}
+
+		Instances train(final int fold) throws Exception {
+			return new IndexedInstances(m_data, m_partition.train(fold));
+		}
+
+		Instances test(final int fold) {
+			return new IndexedInstances(m_data, m_partition.test(fold));
+		}
+	}
+
+	private static double value(final Object value) {
+		return value instanceof Double ? (Double) value : Double.NaN;
+	}
+
+	// Union of the additional measures produced by the models, as collected
+	// by Experiment.initialize: each of them becomes a column of the results.
+	private static String[] additionalMeasures(final List<Classifier> models) {
+		final List<String> measures = new ArrayList<String>();
+		for (final Classifier model : models) {
+			if (model instanceof AdditionalMeasureProducer) {
+				final Enumeration<?> en = ((AdditionalMeasureProducer) model).enumerateMeasures();
+				while (en.hasMoreElements()) {
+					final String measure = (String) en.nextElement();
+					if (!measures.contains(measure)) {measures.add(measure);}
+				}
+			}
+		}
+		return measures.size() > 0 ? measures.toArray(new String[0]) : null;
+	}
+
+	// State shared by all units of one experiment
+	private class Job<V> {
+		final List<Instances>  m_datasets;
+		final List<Classifier> m_models;
+		final String[]         m_additionalMeasures;
+		final File             m_outFile;
+
+		// Splits are indexed by [dataset][run], results by [model][dataset][run][fold]
+		final List<List<FutureTask<RunSplit>>> m_splits;
+		// Content hash of every dataset, for the cache
+		final List<FutureTask<Long>>   m_fingerprints;
+		final Object[][][][][]         m_results;
+		final AtomicInteger            m_pending = new AtomicInteger();
+		final FutureTask<V>            m_done;
+		// Predicted cost of a unit, by [model][dataset]
+		final CostModel.Cost[][]       m_unitCosts;
+
+		// Whether every model is still racing on every dataset, by [model][dataset].
+		// The baseline races as long as any other model does.
+		final boolean[][] m_racing;
+		// First run not queued yet
+		int m_nextRun = 0;
+		// Positions in the results of the column compared by the race and of
+		// the sizes of training and test sets
+		int m_raceColumn;
+		int m_trainSizeColumn;
+		int m_testSizeColumn;
+
+		volatile Exception m_failure = null;
+
+		Job(final List<Instances> datasets,
+			final List<Classifier> models,
+			final File outFile,
+			final Callable<V> andThen,
+			final BlockingQueue<Future<V>> completed) {
+			m_datasets = datasets;
+			m_models   = models;
+			m_outFile  = outFile;
+			m_additionalMeasures = additionalMeasures(models);
+
+			final int nDatasets = datasets.size();
+			final int nModels   = models.size();
+
+			m_splits = new ArrayList<List<FutureTask<RunSplit>>>(nDatasets);
+			for (int d = 0; d < nDatasets; d++) {
+				final Instances data = datasets.get(d);
+				final List<FutureTask<RunSplit>> runSplits = new ArrayList<FutureTask<RunSplit>>(m_nRuns);
+				for (int r = 0; r < m_nRuns; r++) {
+					final int run = r + 1;
+					runSplits.add(new FutureTask<RunSplit>(new Callable<RunSplit>() {
+						public RunSplit call() throws Exception {return new RunSplit(data, run);}
+					}));
+				}
+				m_splits.add(runSplits);
+			}
+			m_fingerprints = new ArrayList<FutureTask<Long>>(nDatasets);
+			for (int d = 0; d < nDatasets; d++) {
+				final Instances data = datasets.get(d);
+				m_fingerprints.add(new FutureTask<Long>(new Callable<Long>() {
+					public Long call() {return SubsetMeritCache.fingerprint(data);}
+				}));
+			}
+			m_results = new Object[nModels][nDatasets][m_nRuns][m_nFolds][];
+			m_unitCosts = new CostModel.Cost[nModels][nDatasets];
+			for (int m = 0; m < nModels; m++) {
+				for (int d = 0; d < nDatasets; d++) {
+					final Instances data = datasets.get(d);
+					m_unitCosts[m][d] = m_costs.crossValidation(models.get(m), data.numInstances(), data.numAttributes() - 1);
+				}}
+			m_racing  = new boolean[nModels][nDatasets];
+			for (final boolean[] racing : m_racing) {Arrays.fill(racing, true);}
+			if (m_race != null) {
+				final ClassifierSplitEvaluator se = new ClassifierSplitEvaluator();
+				se.setClassifier(models.get(0));
+				se.setAdditionalMeasures(m_additionalMeasures);
+				final List<String> names = Arrays.asList(se.getResultNames());
+				m_raceColumn      = names.indexOf(m_race.m_column);
+				m_trainSizeColumn = names.indexOf("Number_of_training_instances");
+				m_testSizeColumn  = names.indexOf("Number_of_testing_instances");
+			}
+
+			m_done = new FutureTask<V>(new Callable<V>() {
+				public V call() throws Exception {
+					if (m_failure != null) {throw m_failure;}
+					writeResults();
+					return andThen.call();
+				}
+			}) {
+				@Override
+				protected void done() {completed.add(this);}
+			};
+		}
+
+		RunSplit split(final int dataset, final int run) throws Exception {
+			// Whoever comes first builds the split, the others wait for it
+			final FutureTask<RunSplit> split = m_splits.get(dataset).get(run);
+			split.run();
+			return split.get();
+		}
+
+		void unit(final int model, final int dataset, final int run, final int fold) {
+			try {
+				if (m_failure == null) {
+					final RunSplit split = split(dataset, run);
+
+					// Every unit has its own evaluator and its own copy of the classifier
+					final ClassifierSplitEvaluator se = new ClassifierSplitEvaluator();
+					se.setClassifier(Classifier.makeCopy(m_models.get(model)));
+					se.setAdditionalMeasures(m_additionalMeasures);
+
+					final Object[] seKey = se.getKey();
+					final Object[] key = new Object[seKey.length + 3];
+					key[0] = weka.core.Utils.backQuoteChars(m_datasets.get(dataset).relationName());
+					key[1] = "" + (run + 1);
+					key[2] = "" + (fold + 1);
+					System.arraycopy(seKey, 0, key, 3, seKey.length);
+
+					final boolean baseline = model == 0 && m_shareBaseline;
+					final String cacheKey = m_cache == null ? null : cacheKey(seKey, baseline ? null : dataset, split, fold);
+					Object[] seResult = cacheKey == null ? null : (Object[]) m_cache.get(cacheKey);
+					if (seResult == null) {
+						if (baseline) {
+							seResult = baselineResult(se, split, fold, m_unitCosts[model][dataset]);
+						} else {
+							final long start = System.nanoTime();
+							seResult = se.getResult(split.train(fold), split.test(fold));
+							m_unitCosts[model][dataset].record(System.nanoTime() - start);
+						}
+						if (cacheKey != null) {m_cache.put(cacheKey, seResult);}
+					}
+					final Object[] result = new Object[seResult.length + 1];
+					result[0] = CrossValidationResultProducer.getTimestamp();
+					System.arraycopy(seResult, 0, result, 1, seResult.length);
+
+					final Object[] row = {key, result};
+					m_results[model][dataset][run][fold] = row;
+				}
+			} catch (Exception e) {
+				m_failure = e;
+			} finally {
+				// Last unit to finish queues the next runs, or writes the results for everybody
+				if (m_pending.decrementAndGet() == 0) {
+					if (m_failure == null && m_race != null && m_nextRun < m_nRuns && race()) {
+						queue(m_nextRun + 1);
+					} else {
+						m_done.run();
+					}
+				}
+			}
+		}
+
+		// Queues the units of the models still racing, up to run 'toRun'
+		void queue(final int toRun) {
+			final int fromRun = m_nextRun;
+			final int nModels   = m_models.size();
+			final int nDatasets = m_datasets.size();
+			int nUnits = 0;
+			for (int m = 0; m < nModels; m++) {
+				for (int d = 0; d < nDatasets; d++) {
+					if (m_racing[m][d]) {nUnits += (toRun - fromRun) * m_nFolds;}
+				}}
+			m_nextRun = toRun;
+			m_pending.set(nUnits);
+			for (int m = 0; m < nModels; m++) {
+				for (int d = 0; d < nDatasets; d++) {
+					if (!m_racing[m][d]) {continue;}
+					final double seconds = m_unitCosts[m][d].seconds();
+					for (int r = fromRun; r < toRun; r++) {
+						for (int f = 0; f < m_nFolds; f++) {
+							final int model = m, dataset = d, run = r, fold = f;
+							m_threadExecutor.submit(m_runtime.task(seconds, 1, new Runnable() {
+								public void run() {unit(model, dataset, run, fold);}
+							}));
+						}}}}
+		}
+
+		// Compares every model still racing with the baseline on the runs done
+		// so far, and stops the ones whose race is over. Whether any is still racing.
+		boolean race() {
+			boolean racing = false;
+			for (int d = 0; d < m_datasets.size(); d++) {
+				boolean datasetRacing = false;
+				for (int m = 1; m < m_models.size(); m++) {
+					if (!m_racing[m][d]) {continue;}
+					final String stop = m_race.stop(compare(m, d), m_nextRun);
+					if (stop == null) {
+						datasetRacing = true;
+					} else {
+						m_racing[m][d] = false;
+						System.out.println(m_datasets.get(d).relationName() + ": " + TaskJournal.spec(m_models.get(m)) 
+								+ " stops after " + m_nextRun + " of " + m_nRuns + " runs, " + stop);
+					}
+				}
+				m_racing[0][d] = datasetRacing;
+				racing = racing || datasetRacing;
+			}
+			return racing;
+		}
+
+		// Comparison of a model with the baseline on a dataset, on the runs done so far
+		PairedStats compare(final int model, final int dataset) {
+			final int n = m_nextRun * m_nFolds;
+			final double[] baseline = new double[n];
+			final double[] values   = new double[n];
+			double trainSize = 0, testSize = 0;
+			for (int r = 0, i = 0; r < m_nextRun; r++) {
+				for (int f = 0; f < m_nFolds; f++, i++) {
+					final Object[] baselineResult = (Object[]) m_results[0][dataset][r][f][1];
+					final Object[] modelResult    = (Object[]) m_results[model][dataset][r][f][1];
+					// Results begin with their timestamp
+					baseline[i] = value(baselineResult[m_raceColumn + 1]);
+					values[i]   = value(modelResult[m_raceColumn + 1]);
+					trainSize += value(baselineResult[m_trainSizeColumn + 1]);
+					testSize  += value(baselineResult[m_testSizeColumn + 1]);
+				}}
+			return Race.compare(baseline, values, testSize / trainSize);
+		}
+
+		// What the result of a unit depends on: a baseline which ignores features
+		// only depends on the folds, which depend on the class column
+		String cacheKey(
+				final Object[] seKey,
+				final Integer dataset,
+				final RunSplit split,
+				final int fold) throws Exception {
+			String data = "any";
+			if (dataset != null) {
+				final FutureTask<Long> fingerprint = m_fingerprints.get(dataset);
+				fingerprint.run();
+				data = Long.toHexString(fingerprint.get());
+			}
+			return TaskJournal.key("cross-validation-fold", data, split.m_partition.m_key, m_nFolds, fold, 
+					Arrays.toString(seKey), Arrays.toString(m_additionalMeasures));
+		}
+
+		// Baseline's result on a fold is computed by the first experiment
+		// getting there, the others on the same folds reuse it.
+		Object[] baselineResult(
+				final ClassifierSplitEvaluator se,
+				final RunSplit split,
+				final int fold,
+				final CostModel.Cost cost) throws Exception {
+			final String key = split.m_partition.m_key + "/" + fold + "/" + Arrays.toString(m_additionalMeasures);
+			FutureTask<Object[]> result = m_baselineResults.get(key);
+			if (result == null) {
+				final FutureTask<Object[]> newResult = new FutureTask<Object[]>(new Callable<Object[]>() {
+					public Object[] call() throws Exception {
+						final long start = System.nanoTime();
+						final Object[] result = se.getResult(split.train(fold), split.test(fold));
+						cost.record(System.nanoTime() - start);
+						return result;
+					}
+				});
+				result = m_baselineResults.putIfAbsent(key, newResult);
+				if (result == null) {result = newResult;}
+			}
+			result.run();
+			return result.get();
+		}
+
+		// Results are accepted in the order Weka's Experiment uses:
+		// classifier, then dataset, then run, then fold.
+		void writeResults() throws Exception {
+			final ClassifierSplitEvaluator se = new ClassifierSplitEvaluator();
+			se.setClassifier(m_models.get(0));
+			final CrossValidationResultProducer cvrp = new CrossValidationResultProducer();
+			cvrp.setNumFolds(m_nFolds);
+			cvrp.setSplitEvaluator(se);
+			cvrp.setAdditionalMeasures(m_additionalMeasures);
+
+			final InstancesResultListener irl = new InstancesResultListener();
+			if (m_outFile.exists()) {m_outFile.delete();}
+			m_outFile.createNewFile();
+			irl.setOutputFile(m_outFile);
+			cvrp.setResultListener(irl);
+
+			irl.preProcess(cvrp);
+			for (final Object[][][][] modelResults : m_results) {
+				for (final Object[][][] datasetResults : modelResults) {
+					for (final Object[][] runResults : datasetResults) {
+						for (final Object[] row : runResults) {
+							// Runs of models out of the race are missing
+							if (row != null) {irl.acceptResult(cvrp, (Object[]) row[0], (Object[]) row[1]);}
+						}}}}
+			irl.postProcess(cvrp);
+		}
+	}
+
+	// Queue every (classifier, run, fold) unit of the experiment, or the ones of the
+	// first run when racing. Once the last one completes, results are written to 'outFile'
+	// and 'andThen' is called: its value is the value of the returned future, which is
+	// then added to 'completed'. Models must not be shared with other threads.
+	public <V> Future<V> submit(
+			final List<Instances> datasets,
+			final List<Classifier> models,
+			final File outFile,
+			final Callable<V> andThen,
+			final BlockingQueue<Future<V>> completed) {
+		final Job<V> job = new Job<V>(datasets, models, outFile, andThen, completed);
+		if (datasets.isEmpty() || models.isEmpty()) {
+			job.m_done.run();
+			return job.m_done;
+		}
+		job.queue(m_race == null ? m_nRuns : 1);
+		return job.m_done;
+	}
+}
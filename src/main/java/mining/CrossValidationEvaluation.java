@@ -1,33 +1,31 @@
 package mining;
 
-import java.beans.IntrospectionException;
-import java.beans.PropertyDescriptor;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-
-import javax.swing.DefaultListModel;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import conf.Configuration;
 
+import utils.TaskJournal;
 import utils.Utils;
 import weka.classifiers.Classifier;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Range;
-import weka.experiment.ClassifierSplitEvaluator;
-import weka.experiment.CrossValidationResultProducer;
-import weka.experiment.Experiment;
-import weka.experiment.InstancesResultListener;
+import weka.experiment.PairedStats;
 import weka.experiment.PairedCorrectedTTester;
-import weka.experiment.PropertyNode;
 import weka.experiment.ResultMatrix;
 import weka.experiment.ResultMatrixPlainText;
 
@@ -40,9 +38,16 @@ public class CrossValidationEvaluation {
 	
 	final public ExecutorService m_threadExecutor;
 	
+	final private CrossValidationEngine m_engine;
+	// Race of the models against the baseline, null when not racing
+	final private Race m_race;
+	
 	final private String m_datasetFolder;
 	final private String m_resultsFolder;
 	
+	// Datasets read so far, by feature selection ranking
+	final private Map<String, Instances> m_datasets = new HashMap<String, Instances>();
+	
 
 	public CrossValidationEvaluation() {
 		this(new Configuration());
@@ -51,7 +56,13 @@ public class CrossValidationEvaluation {
 	public CrossValidationEvaluation(Configuration conf) {
 		m_conf = conf;
 		
-		m_threadExecutor = Executors.newFixedThreadPool(m_conf.m_nThreads);
+		m_threadExecutor = m_conf.newExecutor(m_conf.m_nThreadsCrossValidation);
+		m_race = m_conf.m_racing ? new Race(evaluationColumn(), m_conf.m_racingMinRuns, 
+				m_conf.m_racingStopNotBetter, m_conf.m_racingStopWinners) : null;
+		// Folds are shared by all the experiments on the same dataset
+		m_engine = new CrossValidationEngine(m_threadExecutor, new FoldPartitions(m_conf.m_crossValidationFolds),
+				m_conf.m_crossValidationIterations, m_conf.m_crossValidationFolds, m_conf.baselineIgnoresFeatures(),
+				m_conf.resultCache(), m_race, new CostEstimator(m_conf), m_conf.runtime());
 		
 		final String[] datasetFolderTokens = {m_conf.m_baseFolder, m_conf.m_crossValidationFolder, m_conf.m_datasetFolder, ""};
 		m_datasetFolder = Utils.join(datasetFolderTokens, m_conf.m_fileSeparator);
@@ -60,8 +71,8 @@ public class CrossValidationEvaluation {
 		m_resultsFolder = Utils.join(resultsFolderTokens, m_conf.m_fileSeparator);
 		
 		Utils.requireDir(m_datasetFolder, false);
-		// Empty results folder only if we are performing cross validation
-		Utils.requireDir(m_resultsFolder, m_conf.m_doCrossValidation);
+		// Empty results folder only if we are performing cross validation from scratch
+		Utils.requireDir(m_resultsFolder, m_conf.m_doCrossValidation && !m_conf.m_resume);
 	}    
 
 	private File getOutputFile(final String dataset, final String nFeatures) {
@@ -91,7 +102,25 @@ public class CrossValidationEvaluation {
 		return classifiers.toArray(new String[0][0]);
 	}
 	
+	// Column of the results models are compared on
+	private String evaluationColumn() {
+	    switch (m_conf.m_evaluationMeasure) {
+	    	case "accuracy":  
+	    		return "Percent_correct";
+	    	case "precision":  
+	    		return "IR_precision";
+	    	case "recall":  
+	    		return "IR_recall";
+	    	case "f-measure":  
+	    		return "F_measure";
+	    	default :  
+    			System.out.println("WARNING Unrecognized evaluation mesure. Using Accuracy as default.");
+	    		return "Percent_correct";
+	    }
+	}
+	
 	private List<String[]> getWinners(final String competition, final String nFeatures, final File outFile) throws Exception {
+		if (m_race != null) {return getRacedWinners(competition, nFeatures, outFile);}
 		// Read experiment's results
 	    final PairedCorrectedTTester tester = new PairedCorrectedTTester();
 	    final Instances result = Utils.readFile(outFile);
@@ -114,30 +143,10 @@ public class CrossValidationEvaluation {
 	    tester.setResultMatrix(matrix);
 	    
 	    tester.setDisplayedResultsets(null);
-	    tester.setSignificanceLevel(0.05);
+	    tester.setSignificanceLevel(Race.SIGNIFICANCE);
 	    tester.setShowStdDevs(true);
 	    
-	    final String evalAttribute;
-	    switch (m_conf.m_evaluationMeasure) {
-	    	case "accuracy":  
-	    		evalAttribute = "Percent_correct";
-	    		break;
-	    	case "precision":  
-    			evalAttribute = "IR_precision";
-	    		break;
-	    	case "recall":  
-    			evalAttribute = "IR_recall";
-	    		break;
-	    	case "f-measure":  
-    			evalAttribute = "F_measure";
-	    		break;
-	    	default :  
-    			evalAttribute = "Percent_correct";
-    			System.out.println("WARNING Unrecognized evaluation mesure. Using Accuracy as default.");
-	    		break;
-	    }
-	    
-	    final int comparationColumnIndex = result.attribute(evalAttribute).index();
+	    final int comparationColumnIndex = result.attribute(evaluationColumn()).index();
 	    tester.multiResultsetFull(0, comparationColumnIndex);
 	    
 	    final String[][] methodsOriginalNames = getClassifiers(result);
@@ -166,6 +175,70 @@ public class CrossValidationEvaluation {
 	    return winners;
 	}
 	
+	// Models of a raced experiment stopped after different numbers of runs, which
+	// PairedCorrectedTTester doesn't allow: each of them is compared with the
+	// baseline on the folds it ran, by the same test on the same dataset.
+	private List<String[]> getRacedWinners(final String competition, final String nFeatures, final File outFile) throws Exception {
+		final Instances result = Utils.readFile(outFile);
+		final Attribute datasetAttr = result.attribute("Key_Dataset");
+		final Attribute schemeAttr  = result.attribute("Key_Scheme");
+		final Attribute optionsAttr = result.attribute("Key_Scheme_options");
+		final Attribute versionAttr = result.attribute("Key_Scheme_version_ID");
+		final Attribute runAttr     = result.attribute("Key_Run");
+		final Attribute foldAttr    = result.attribute("Key_Fold");
+		final int column    = result.attribute(evaluationColumn()).index();
+		final int trainSize = result.attribute("Number_of_training_instances").index();
+		final int testSize  = result.attribute("Number_of_testing_instances").index();
+		
+		// Results on the first dataset by model, the first one being the baseline
+		final List<String[]> methods = new ArrayList<String[]>();
+		final List<List<Instance>> rows = new ArrayList<List<Instance>>();
+		String lastKey = null;
+		for (int i = 0; i < result.numInstances(); i++) {
+			final Instance r = result.instance(i);
+			if (!r.stringValue(datasetAttr).equals(result.instance(0).stringValue(datasetAttr))) {continue;}
+			final String thisKey = r.stringValue(schemeAttr) + r.stringValue(optionsAttr) + r.stringValue(versionAttr);
+			if (lastKey == null || !lastKey.equals(thisKey)) {
+				final String[] method = {r.stringValue(schemeAttr), r.stringValue(optionsAttr)};
+				methods.add(method);
+				rows.add(new ArrayList<Instance>());
+				lastKey = thisKey;
+			}
+			rows.get(rows.size() - 1).add(r);
+		}
+		final Map<String, Instance> baselineRows = new HashMap<String, Instance>();
+		for (final Instance r : rows.get(0)) {
+			baselineRows.put(r.stringValue(runAttr) + "/" + r.stringValue(foldAttr), r);
+		}
+		
+		final List<String[]> winners = new ArrayList<String[]>();
+		String baselineMean = null, baselineStdDev = null;
+		for (int m = 0; m < methods.size(); m++) {
+			final List<Instance> modelRows = rows.get(m);
+			final double[] baseline = new double[modelRows.size()];
+			final double[] values   = new double[modelRows.size()];
+			double totalTrainSize = 0, totalTestSize = 0;
+			for (int i = 0; i < modelRows.size(); i++) {
+				final Instance r = modelRows.get(i);
+				final Instance b = baselineRows.get(r.stringValue(runAttr) + "/" + r.stringValue(foldAttr));
+				baseline[i] = b.isMissing(column) ? Double.NaN : b.value(column);
+				values[i]   = r.isMissing(column) ? Double.NaN : r.value(column);
+				totalTrainSize += b.value(trainSize);
+				totalTestSize  += b.value(testSize);
+			}
+			final PairedStats stats = Race.compare(baseline, values, totalTestSize / totalTrainSize);
+			final String mean   = Double.toString(stats.yStats.mean);
+			final String stdDev = Double.toString(stats.yStats.stdDev);
+			if (m == 0) {
+				baselineMean = mean; baselineStdDev = stdDev;
+			} else if (stats.differencesSignificance < 0) {
+		    	final String[] r = {competition, nFeatures, methods.get(m)[0], methods.get(m)[1], mean, stdDev, baselineMean, baselineStdDev};
+		    	winners.add(r);
+			}
+		}
+		return winners;
+	}
+	
 	private List<String[]> getWinners(final String competition, final String nFeatures) throws Exception {
 		return getWinners(competition, nFeatures, getOutputFile(competition, nFeatures));
 	}
@@ -180,95 +253,188 @@ public class CrossValidationEvaluation {
 				}}} ; return winners;
 	}
 	
-	private List<String[]> exp(final String competition, final String nFeatures, final List<Classifier> models) throws Exception {
-		final Experiment exp = new Experiment();
-		
-		// Read datasets from files...
-        final DefaultListModel<File> model = new DefaultListModel<File>();
-        final String regexp = "^" + competition + ".*features" + nFeatures + ".arff$";
+	// Every feature subset of a ranking is a view over the same dataset, which is read only once
+	private Instances getDataset(final String featureSet) {
+		Instances data = m_datasets.get(featureSet);
+		if (data == null) {
+			data = Utils.readFile(m_datasetFolder + featureSet + m_conf.datasetExtension());
+			m_datasets.put(featureSet, data);
+		}
+		return data;
+	}
+	
+	private File[] rankingFiles(final String competition) {
+		final String regexp = "^" + competition + ".*" + Utils.RANKING_EXTENSION + "$";
 		final FilenameFilter fileFilter = Utils.getFileFilter(regexp);
-        final File dir = new File(m_datasetFolder);
-        // ...and include them in the experiment.
-        for (final File train : dir.listFiles(fileFilter)) {model.addElement(train);}
-        if (model.size() == 0) return null;
-        exp.setDatasets(model);
-		
-        // Set classifiers for the experiment. Classifier n. 0 is the baseline
-		models.add(0, Classifier.makeCopy(m_conf.m_baselineClassifier));
-		exp.setPropertyArray(models.toArray());
-		exp.setUsePropertyIterator(true);
-		
-		// Set the experiment as a classification experiment
-		final ClassifierSplitEvaluator se = new ClassifierSplitEvaluator();
-		final Class<? extends ClassifierSplitEvaluator> seClass = se.getClass();
-	    
-	    // Set the experiment as cross-validated and set number of folds
-        final CrossValidationResultProducer cvrp = new CrossValidationResultProducer();
-        final Class<? extends CrossValidationResultProducer> cvrpClass = cvrp.getClass();
-        cvrp.setNumFolds(m_conf.m_crossValidationFolds);
-        cvrp.setSplitEvaluator(se);
-	        
-        final PropertyNode[] propertyPath = new PropertyNode[2];
-        try {
-        	propertyPath[0] = new PropertyNode(se, new PropertyDescriptor("splitEvaluator", cvrpClass), cvrpClass);
-        	propertyPath[1] = new PropertyNode(se.getClassifier(), new PropertyDescriptor("classifier", seClass), seClass);
-        } catch (IntrospectionException e) {e.printStackTrace();}
-	        
-        exp.setResultProducer(cvrp);
-        exp.setPropertyPath(propertyPath);
-        
-        // Set number of iterations for each experiment
-        exp.setRunLower(1);
-        exp.setRunUpper(m_conf.m_crossValidationIterations);
-        		
-		// Set output file for the experiment
-		final InstancesResultListener irl = new InstancesResultListener();
-		final File outFile = getOutputFile(competition, nFeatures);
-		if (outFile.exists()) {outFile.delete();}
-		outFile.createNewFile();
-	    irl.setOutputFile(outFile);
-	    exp.setResultListener(irl);
-	    
-	    exp.initialize();
-	    exp.runExperiment();
-	    exp.postProcess();
-        
-	    return getWinners(competition, nFeatures, outFile);
+		return new File(m_datasetFolder).listFiles(fileFilter);
+	}
+	
+	// Experiment is identified in the journal by its rankings, datasets and classifiers
+	private String experimentKey(
+			final String competition, 
+			final String nFeatures, 
+			final File[] rankings, 
+			final List<Classifier> models) throws Exception {
+		final List<Object> keyParts = new ArrayList<Object>();
+		keyParts.add("cross-validation"); keyParts.add(competition); keyParts.add(nFeatures);
+		keyParts.add(m_conf.m_crossValidationIterations); keyParts.add(m_conf.m_crossValidationFolds);
+		for (final File ranking : rankings) {
+			final String featureSet = Utils.stripExtension(ranking.getName());
+			keyParts.add(featureSet);
+			keyParts.add(TaskJournal.fingerprint(ranking));
+			keyParts.add(TaskJournal.fingerprint(new File(m_datasetFolder + featureSet + m_conf.datasetExtension())));
+		}
+		for (final Classifier model : models) {keyParts.add(TaskJournal.spec(model));}
+		if (m_race != null) {keyParts.add(m_race);}
+		return TaskJournal.key(keyParts.toArray());
+	}
+	
+	// Features each ranking keeps with 'nFeatures': experiments of the same
+	// competition with the same features differ by the names of their datasets only
+	private String featureSets(final String competition, final int nFeatures) throws Exception {
+		final List<String> featureSets = new ArrayList<String>();
+		for (final File ranking : rankingFiles(competition)) {
+			final int nKept = Math.min(nFeatures, Utils.readRanking(ranking).size());
+			featureSets.add(Utils.stripExtension(ranking.getName()) + ":" + nKept);
+		}
+		Collections.sort(featureSets);
+		return competition + "/" + featureSets;
+	}
+	
+	// Results of an experiment with another number of features giving the same feature 
+	// sets: the same results, with the names of the datasets of that number of features
+	private void copyResults(final File outFile, final String nFeatures, final File aliasFile, final String aliasNFeatures) throws Exception {
+		final Instances results = Utils.readFile(outFile);
+		final Attribute datasets = results.attribute("Key_Dataset");
+		final String suffix = "_features" + nFeatures;
+		for (int v = 0; v < datasets.numValues(); v++) {
+			final String name = datasets.value(v);
+			if (name.endsWith(suffix)) {
+				results.renameAttributeValue(datasets, name, 
+						name.substring(0, name.length() - suffix.length()) + "_features" + aliasNFeatures);
+			}
+		}
+		Utils.saveInstances(results, aliasFile);
 	}
 	
-	private Future<List<String[]>> submitExp(final String dataset, final String nFeatures) throws Exception {
-		// Queue experiments in the executor
-		return m_threadExecutor.submit(new Callable<List<String[]>>() {
+	// Runs the experiment for the first of the numbers of features, which all give the same
+	// feature sets: results of the others are copied from its results. Winners of all of them
+	// are the value of the returned future, which is added to 'completed' once done.
+	private Future<List<String[]>> exp(
+			final String competition, 
+			final List<String> nFeatures, 
+			final List<Classifier> models,
+			final BlockingQueue<Future<List<String[]>>> completed) throws Exception {
+		final File[] rankings = rankingFiles(competition);
+		if (rankings.length == 0) {
+			final FutureTask<List<String[]>> none = new FutureTask<List<String[]>>(new Callable<List<String[]>>() {
+				public List<String[]> call() {return new ArrayList<String[]>(0);}
+			}); none.run(); completed.add(none); return none;
+		}
+
+		// Set classifiers for the experiment. Classifier n. 0 is the baseline
+		models.add(0, Classifier.makeCopy(m_conf.m_baselineClassifier));
+		
+		// When completed by a previous run, results are read from there
+		final TaskJournal journal = m_conf.journal();
+		final int nExperiments = nFeatures.size();
+		final String[] keys = new String[nExperiments];
+		final File[] outFiles = new File[nExperiments];
+		boolean done = true;
+		for (int e = 0; e < nExperiments; e++) {
+			keys[e] = experimentKey(competition, nFeatures.get(e), rankings, models);
+			outFiles[e] = getOutputFile(competition, nFeatures.get(e));
+			done = done && journal.isDone(keys[e], outFiles[e]);
+		}
+		final Callable<List<String[]>> winners = new Callable<List<String[]>>() {
 			public List<String[]> call() throws Exception {
-				// To ensure thread safety, always copy the classifier, instead of passing by reference!
-				final List<Classifier> modelsCopy = new ArrayList<Classifier>(m_conf.m_nClassifiers);
-				for (final Classifier model: m_conf.m_classifiers) {modelsCopy.add(Classifier.makeCopy(model));}
-				return exp(dataset, nFeatures, modelsCopy);
+				final List<String[]> winners = new ArrayList<String[]>();
+				for (int e = 0; e < nExperiments; e++) {
+					winners.addAll(getWinners(competition, nFeatures.get(e), outFiles[e]));
+				}
+				return winners;
 			}
-		});
+		};
+		if (done) {
+			final FutureTask<List<String[]>> recorded = new FutureTask<List<String[]>>(winners); 
+			recorded.run(); completed.add(recorded); return recorded;
+		}
+		
+		// Read feature selection rankings and include their best features in the experiment
+		final String experimentNFeatures = nFeatures.get(0);
+		final List<Instances> datasets = new ArrayList<Instances>();
+		for (final File ranking : rankings) {
+			final String featureSet = Utils.stripExtension(ranking.getName());
+			datasets.add(Utils.projectFeatures(
+					getDataset(featureSet), Utils.readRanking(ranking), Integer.parseInt(experimentNFeatures), 
+					featureSet + "_features" + experimentNFeatures));
+		}
+
+		// Every (classifier, run, fold) is queued on its own: once the last 
+		// one is done, results are written and winners are retrieved.
+		return m_engine.submit(datasets, models, outFiles[0], new Callable<List<String[]>>() {
+			public List<String[]> call() throws Exception {
+				journal.record(keys[0], outFiles[0]);
+				for (int e = 1; e < nExperiments; e++) {
+					copyResults(outFiles[0], experimentNFeatures, outFiles[e], nFeatures.get(e));
+					journal.record(keys[e], outFiles[e]);
+				}
+				return winners.call();
+			}
+		}, completed);
+	}
+	
+	private Future<List<String[]>> submitExp(
+			final String dataset, 
+			final List<String> nFeatures, 
+			final BlockingQueue<Future<List<String[]>>> completed) throws Exception {
+		// To ensure thread safety, always copy the classifier, instead of passing by reference!
+		final List<Classifier> modelsCopy = new ArrayList<Classifier>(m_conf.m_nClassifiers + 1);
+		for (final Classifier model: m_conf.m_classifiers) {modelsCopy.add(Classifier.makeCopy(model));}
+		// Units of the experiment are queued in the executor
+		return exp(dataset, nFeatures, modelsCopy, completed);
 	}
 	
 	// CV experiments returns futures to the next phase: this way we don't have to wait for 
 	// every CV experiment to complete, for testing results we already have on the test set.
-	public List<Future<List<String[]>>> experiment() throws Exception {
+	// Numbers of features giving the same feature sets make a single experiment, whose
+	// future gives the winners of all of them. Futures are returned in the order experiments
+	// are queued, and added to 'completed' in the order they complete.
+	public List<Future<List<String[]>>> experiment(final BlockingQueue<Future<List<String[]>>> completed) throws Exception {
 		final int nExperiments = m_conf.m_featureSelectionNFeatures.length * m_conf.m_nDatasets;
 		final List<Future<List<String[]>>> results = new ArrayList<Future<List<String[]>>>(nExperiments);
 		
-		for (final int nFeatures : m_conf.m_featureSelectionNFeatures) {
+		final Map<String, List<String>> sameFeatureSets = new HashMap<String, List<String>>();
+		final List<String> datasets = new ArrayList<String>(nExperiments);
+		final List<List<String>> nFeatures = new ArrayList<List<String>>(nExperiments);
+		for (final int n : m_conf.m_featureSelectionNFeatures) {
 			for (final String dataset : m_conf.m_datasetNames) {
-				results.add(submitExp(dataset, Integer.toString(nFeatures)));
+				final String featureSets = featureSets(dataset, n);
+				List<String> same = sameFeatureSets.get(featureSets);
+				if (same == null) {
+					same = new ArrayList<String>();
+					sameFeatureSets.put(featureSets, same);
+					datasets.add(dataset);
+					nFeatures.add(same);
+				} else {
+					System.out.println(dataset + " with " + n + " features has the same feature sets as with " + same.get(0));
+				}
+				same.add(Integer.toString(n));
 			}
 		}
+		for (int e = 0; e < datasets.size(); e++) {
+			results.add(submitExp(datasets.get(e), nFeatures.get(e), completed));
+		}
 		return results;
 	}
-				
+			
 	/**
 	 * @param args
 	 * @throws Exception 
 	 */
 	public static void main(final String[] args) throws Exception {
 		CrossValidationEvaluation cv = new CrossValidationEvaluation();
-		cv.experiment();
+		cv.experiment(new LinkedBlockingQueue<Future<List<String[]>>>());
 		cv.m_threadExecutor.shutdown();
 	}
 
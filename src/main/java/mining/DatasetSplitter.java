@@ -4,14 +4,19 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import conf.Configuration;
 
+import utils.DatasetWriter;
+import utils.ExternalSorter;
 import utils.Utils;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.converters.ArffLoader;
 import weka.filters.unsupervised.attribute.Remove;
 
 // This object cares to split dataset by the split attribute
@@ -66,7 +71,7 @@ public class DatasetSplitter {
 	}
 	
 	private String featureSelectionDatasetFile(final String datasetName) {
-		final String[] pathTokens = {m_featureSelectionDatasetPath, datasetName + ".arff"};
+		final String[] pathTokens = {m_featureSelectionDatasetPath, datasetName + m_conf.datasetExtension()};
 		return Utils.join(pathTokens, m_conf.m_fileSeparator);
 	}
 
@@ -76,7 +81,7 @@ public class DatasetSplitter {
 	}
 	
 	private String crossValidationDatasetFile(final String datasetName) {
-		final String[] pathTokens = {m_crossValidationDatasetPath, datasetName + ".arff"};
+		final String[] pathTokens = {m_crossValidationDatasetPath, datasetName + m_conf.datasetExtension()};
 		return Utils.join(pathTokens, m_conf.m_fileSeparator);
 	}
 
@@ -86,7 +91,7 @@ public class DatasetSplitter {
 	}
 	
 	private String testSetDatasetFile(final String datasetName) {
-		final String[] pathTokens = {m_testSetDatasetPath, datasetName + ".arff"};
+		final String[] pathTokens = {m_testSetDatasetPath, datasetName + m_conf.datasetExtension()};
 		return Utils.join(pathTokens, m_conf.m_fileSeparator);
 	}
 
@@ -165,6 +170,10 @@ public class DatasetSplitter {
 
 	// Slice and assign the dataset to the phases, then save the 3 datasets in their proper files.
 	public void buildDatasets() throws Exception {
+		if (m_conf.m_streamingSplit) {
+			streamDatasets();
+			return;
+		}
 		for (final String datasetName: m_conf.m_datasetNames) {
 			final String datasetFile = datasetFile(datasetName);
 			Instances dataset = Utils.readFile(datasetFile);
@@ -178,50 +187,101 @@ public class DatasetSplitter {
 		}
 	}
 	
-	// Obtain a HashMap containing all attributes into a reference dataset
-	private HashMap<String,Boolean> getAttributeReference(final Instances reference) {
-		final HashMap<String,Boolean> map = new HashMap<String,Boolean>();
-		final int nAttributes = reference.numAttributes();
-		for (int i = 0; i < nAttributes; i++) {
-			final String aName = reference.attribute(i).name();
-			map.put(aName, true);
-		} ; return map;
-	}
-
-	// Uses a reference built by 'getAttributeReference' on a dataset to it 
-	// will contains all and only the atrributes specified in the reference
-	private Instances attributesFromReference(
-			final Instances dataset, 
-			final HashMap<String,Boolean> reference) throws Exception {
-		final int nAttributes = dataset.numAttributes();
-		String keptAttributes = "";
-		for (int i = 0; i < nAttributes; i++) {
-			final String aName = dataset.attribute(i).name();
-			if (reference.containsKey(aName)) {
-				if (!keptAttributes.equals("")) {
-					keptAttributes+=",";}
-				keptAttributes+="" + (i + 1);
+	// Same as 'buildDatasets', for datasets bigger than available memory. Dataset is read 
+	// one row at a time and each row is routed by its slice to the phases it is assigned to,
+	// without attributes to be removed. Rows of every phase go through an external sort, 
+	// which keeps at most 'm_splitSortBuffer' rows in memory.
+	private void streamDatasets() throws Exception {
+		for (final String datasetName: m_conf.m_datasetNames) {
+			final ArffLoader loader = new ArffLoader();
+			loader.setSource(new File(datasetFile(datasetName)));
+			final Instances structure = loader.getStructure();
+			
+			final Attribute sliceAttribute = structure.attribute(m_conf.m_sliceAttributeName);
+			final Attribute sortAttribute  = structure.attribute(m_conf.m_sortAttributeName);
+			if (sliceAttribute == null || sortAttribute == null) {
+				throw new Exception("Slice or sort attribute not found in dataset " + datasetName);
+			}
+			if (structure.checkForAttributeType(Attribute.STRING) || structure.checkForAttributeType(Attribute.RELATIONAL)) {
+				throw new Exception("String and relational attributes are not supported when splitting in streaming.");
+			}
+			
+			// Attributes we keep in the phases' datasets
+			final HashMap<String,Boolean> removed = new HashMap<String,Boolean>();
+			for (final String attToRemove : m_conf.m_attributesToRemove) {
+				if (structure.attribute(attToRemove) == null) {
+					System.out.println("Warning, couldn't remove missing attribute " + attToRemove + " in dataset.");
+				}
+				removed.put(attToRemove, true);
+			}
+			removed.put(m_conf.m_sliceAttributeName, true);
+			removed.put(m_conf.m_sortAttributeName, true);
+			String removedAttributes = "";
+			final int nAttributes = structure.numAttributes();
+			final int[] keptAttributes = new int[nAttributes];
+			int nKept = 0;
+			for (int i = 0; i < nAttributes; i++) {
+				if (removed.containsKey(structure.attribute(i).name())) {
+					if (!removedAttributes.equals("")) {removedAttributes+=",";}
+					removedAttributes+= (i + 1);
+				} else {
+					keptAttributes[nKept++] = i;
+				}
+			}
+			final Remove remove = new Remove();
+			remove.setAttributeIndices(removedAttributes);
+			final Instances header = Utils.useFilter(structure, remove);
+			
+			// Which phases every slice is assigned to
+			final String[][] phasesSlices = {
+					m_conf.m_featureSelectionDatasetSlices, 
+					m_conf.m_crossValidationDatasetSlices, 
+					m_conf.m_testSetDatasetSlices};
+			final ExternalSorter[] sorters = new ExternalSorter[phasesSlices.length];
+			for (int p = 0; p < sorters.length; p++) {
+				sorters[p] = new ExternalSorter(nKept, m_conf.m_splitSortBuffer);
+			}
+			
+			final int sortIndex = sortAttribute.index();
+			Instance in = loader.getNextInstance(structure);
+			while (in != null) {
+				final String sliceName = in.toString(sliceAttribute);
+				double[] values = null;
+				for (int p = 0; p < sorters.length; p++) {
+					if (Arrays.asList(phasesSlices[p]).contains(sliceName)) {
+						if (values == null) {
+							values = new double[nKept];
+							for (int i = 0; i < nKept; i++) {values[i] = in.value(keptAttributes[i]);}
+						}
+						sorters[p].add(in.value(sortIndex), values, in.weight());
+					}
+				}
+				in = loader.getNextInstance(structure);
+			}
+			
+			final String[] outFiles = {
+					featureSelectionDatasetFile(datasetName),
+					crossValidationDatasetFile(datasetName),
+					testSetDatasetFile(datasetName)};
+			for (int p = 0; p < sorters.length; p++) {
+				final File outFile = new File(outFiles[p]);
+				header.setRelationName(Utils.stripExtension(outFile.getName()));
+				final DatasetWriter writer = Utils.datasetWriter(header, outFile);
+				try {sorters[p].writeTo(writer);}
+				finally {writer.close();}
 			}
 		}
-		
-		// I will keep only the attributes which are NOT in the ones I saved
-		final Remove remove = new Remove();
-		remove.setAttributeIndices(keptAttributes);
-		remove.setInvertSelection(true);
-		final Instances result = Utils.useFilter(dataset, remove);
-		
-		// For safety, we leave from here only if reference 
-		// and dataset have the same number of attributes now
-		assert(result.numAttributes() == reference.size() + 1);
-		
-		return result;
 	}
 	
 	// Uses the results of feature selection on datasets assigned to cross validation and
 	// test set evaluation, so their attributes will be filtered according to selection.
+	// Datasets keep the features of the biggest subset together with the ranking: 
+	// following phases take the smaller subsets as views over them.
 	void datasetAttributesFromReference() throws Exception {
+		final int[] nFeatures = m_conf.m_featureSelectionNFeatures;
+		final int maxFeatures = nFeatures[nFeatures.length - 1];
 		for(final String datasetName: m_conf.m_datasetNames) {
-			final String regexp = "^" + datasetName + ".*.arff$";
+			final String regexp = "^" + datasetName + ".*" + Utils.RANKING_EXTENSION + "$";
 			final FilenameFilter fileFilter = Utils.getFileFilter(regexp);
 			
 			// Dataset with all the features for the following phases
@@ -230,23 +290,29 @@ public class DatasetSplitter {
 			
 			// Take the folder with feature selection results...
 			final File dir = new File(featureSelectionResultsPath());
-	        final File[] datasetFiles = dir.listFiles(fileFilter);
-			for (final File featureSet: datasetFiles) {
-				if (featureSet.isFile() && !featureSet.isHidden()) {
-					final String featureSetDescription = featureSet.getName();
+	        final File[] rankingFiles = dir.listFiles(fileFilter);
+			for (final File rankingFile: rankingFiles) {
+				if (rankingFile.isFile() && !rankingFile.isHidden()) {
+					final String rankingName = rankingFile.getName();
+					final String featureSetDescription = Utils.stripExtension(rankingName) + m_conf.datasetExtension();
 					// ...use them as reference for attributes...
-					final HashMap<String,Boolean> reference = getAttributeReference(Utils.readFile(featureSet));
+					final List<String> ranking = Utils.readRanking(rankingFile);
 					Instances modifiedDataset;
 					
-					// ...so we can apply selection on cross validation dataset...
-					modifiedDataset = attributesFromReference(CVDataset, reference);
-					try {Utils.saveInstances(modifiedDataset, m_conf.crossValidationSelectedDatasetPath() + featureSetDescription);}
-					catch (IOException e) {e.printStackTrace();}
+					// ...so we can apply selection on cross validation dataset, as a 
+					// view over its features written straight to the file...
+					modifiedDataset = Utils.projectFeatures(CVDataset, ranking, maxFeatures, CVDataset.relationName());
+					try {
+						Utils.saveInstances(modifiedDataset, m_conf.crossValidationSelectedDatasetPath() + featureSetDescription);
+						Utils.saveRanking(ranking, new File(m_conf.crossValidationSelectedDatasetPath() + rankingName));
+					} catch (IOException e) {e.printStackTrace();}
 					
 					// ...and test set one.
-					modifiedDataset = attributesFromReference(testDataset, reference);
-					try {Utils.saveInstances(modifiedDataset, m_conf.testSetSelectedDatasetPath() + featureSetDescription);}
-					catch (IOException e) {e.printStackTrace();}
+					modifiedDataset = Utils.projectFeatures(testDataset, ranking, maxFeatures, testDataset.relationName());
+					try {
+						Utils.saveInstances(modifiedDataset, m_conf.testSetSelectedDatasetPath() + featureSetDescription);
+						Utils.saveRanking(ranking, new File(m_conf.testSetSelectedDatasetPath() + rankingName));
+					} catch (IOException e) {e.printStackTrace();}
 				}
 			}
 		}
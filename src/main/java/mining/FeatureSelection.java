@@ -1,18 +1,28 @@
 package mining;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import conf.Configuration;
 
+import utils.CostModel;
+import utils.ExecutionRuntime;
+import utils.IndexedInstances;
+import utils.RankAggregator;
+import utils.SubsetMeritCache;
+import utils.TaskJournal;
 import utils.Utils;
 import weka.attributeSelection.ASEvaluation;
 import weka.attributeSelection.AttributeSelection;
-import weka.attributeSelection.GreedyStepwise;
 import weka.attributeSelection.Ranker;
 import weka.attributeSelection.WrapperSubsetEval;
 import weka.classifiers.Classifier;
@@ -25,6 +35,13 @@ public class FeatureSelection {
 	final String m_resultsPath;
 	
 	final ExecutorService m_threadExecutor;
+	// Predicted running times tasks are queued with
+	final CostEstimator m_costs;
+	// Candidates of the wrappers stepwise searches and tables of the filters
+	// are forked on the pool of the runtime
+	final ExecutionRuntime m_runtime;
+	// Merits of the subsets evaluated by the wrappers
+	final SubsetMeritCache m_meritCache;
 	
 	final String m_filtersNames;
 	final String m_wrappersNames;
@@ -36,7 +53,10 @@ public class FeatureSelection {
 	public FeatureSelection(Configuration conf) {
 		m_conf = conf;
 
-		m_threadExecutor = Executors.newFixedThreadPool(m_conf.m_nThreads);
+		m_threadExecutor = m_conf.newExecutor(m_conf.m_nThreadsFeatureSelection);
+		m_costs = new CostEstimator(m_conf);
+		m_runtime = m_conf.runtime();
+		m_meritCache = new SubsetMeritCache(m_conf.m_subsetCacheSize);
 		
 		// Build filter names from conf
 		final int nFilters = m_conf.m_filters.size();
@@ -72,7 +92,7 @@ public class FeatureSelection {
 	
 	
 	private String datasetFile(final String competition) {
-		final String[] pathTokens = {m_conf.m_baseFolder, m_conf.m_datasetFolder, m_conf.m_featureSelectionFolder, competition + ".arff"};
+		final String[] pathTokens = {m_conf.m_baseFolder, m_conf.m_datasetFolder, m_conf.m_featureSelectionFolder, competition + m_conf.datasetExtension()};
 		return Utils.join(pathTokens, m_conf.m_fileSeparator);
 	}
 	
@@ -89,34 +109,40 @@ public class FeatureSelection {
 		final protected AttributeSelection m_meta;
 		final protected Instances m_data;
 		
-		public Exp(final Instances data, final int nFolds) {
+		public Exp(final Instances data, final int nFolds, final Random random) {
 			m_data = data;
 			m_meta = new AttributeSelection();
-			m_meta.setSeed(m_conf.m_random.nextInt());
+			m_meta.setSeed(random.nextInt());
 			m_meta.setFolds(nFolds);
 		}
 		
 		protected double[][] getRankedAttributes() throws Exception {
-			m_meta.SelectAttributes(m_data);
-			final double[][] rankedAttributes = m_meta.rankedAttributes();
-			// Merit score assigned by the search class might not be intended as
-			// an absolute score, but as the combined merit of feature set so
-			// far. We replace the merit score with the reverse ranking
-			// position, in order to use it as an absolute merit.
-			for(int i = 0; i < rankedAttributes.length; i++) {
-			    rankedAttributes[i][1] = rankedAttributes.length - i;}
-			// Attributes are already sorted by definition...
-			// Utils.sortByValue(rankedAttributes);
-			return rankedAttributes;
+			// We use a shallow copy of the dataset for thread safety: evaluators
+			// copy the values they modify, rows are shared
+			m_meta.SelectAttributes(new IndexedInstances(m_data));
+			return positionalMerits(m_meta.rankedAttributes());
 		}
 	}
 	
+	private static double[][] positionalMerits(final double[][] rankedAttributes) {
+		// Merit score assigned by the search class might not be intended as
+		// an absolute score, but as the combined merit of feature set so
+		// far. We replace the merit score with the reverse ranking
+		// position, in order to use it as an absolute merit.
+		for(int i = 0; i < rankedAttributes.length; i++) {
+		    rankedAttributes[i][1] = rankedAttributes.length - i;}
+		// Attributes are already sorted by definition...
+		// Utils.sortByValue(rankedAttributes);
+		return rankedAttributes;
+	}
+	
 	public class FilterExp extends Exp {
 		public FilterExp(
 				final Instances data, 
 				final ASEvaluation eval, 
-				final int nFolds) {
-			super(data, nFolds);
+				final int nFolds,
+				final Random random) {
+			super(data, nFolds, random);
 			m_meta.setEvaluator(eval);
 			m_meta.setSearch(new Ranker());
 		}
@@ -125,22 +151,30 @@ public class FeatureSelection {
 	public class WrapperExp extends Exp {
 		public WrapperExp(
 				final Instances data, 
+				final long fingerprint,
 				final Classifier classifier, 
-				final int nFolds) throws Exception {
-			super(data, nFolds);
-			
-			String options;
+				final int nFolds,
+				final Random random) throws Exception {
+			super(data, nFolds, random);
 			
+			// Same as "-F 5 -T 0.01", through the setters: setOptions would
+			// reset the seed, and every iteration would use the same folds.
+			// The seed is among the options the merit cache tells evaluators
+			// apart by, so iterations don't share merits either.
 			final WrapperSubsetEval eval = new WrapperSubsetEval();
-			options = "-F 5 -T 0.01";
-			eval.setSeed(m_conf.m_random.nextInt());
-			eval.setOptions(weka.core.Utils.splitOptions(options));
+			eval.setFolds(5);
+			eval.setThreshold(0.01);
+			eval.setSeed(random.nextInt());
 			eval.setClassifier(classifier);
 			m_meta.setEvaluator(eval);
 			
-			final GreedyStepwise search = new GreedyStepwise();
-			options = "-R -T -1.7976931348623157E308 -N -1";
-			search.setOptions(weka.core.Utils.splitOptions(options));
+			// Same as GreedyStepwise "-R -T -1.7976931348623157E308 -N -1",
+			// but the candidates of each step are evaluated in parallel
+			final ParallelGreedyStepwise search = new ParallelGreedyStepwise(m_runtime.pool());
+			search.setGenerateRanking(true);
+			search.setThreshold(-Double.MAX_VALUE);
+			search.setNumToSelect(-1);
+			search.setMeritCache(m_meritCache, fingerprint);
 			m_meta.setSearch(search);
 		}
 	}
@@ -161,92 +195,379 @@ public class FeatureSelection {
 		return wrapperName;
 	}
 	
-	private String getOutFileName(final String dataset, final int nFeatures) {
+	private String getOutFileName(final String dataset) {
 		return m_resultsPath + m_conf.m_fileSeparator 
 		+ dataset 
 		+ m_filtersNames
 		+ m_wrappersNames
 		+ "_fold"       + m_conf.m_featureSelectionFolds
 		+ "_iterations" + m_conf.m_featureSelectionIterations
-		+ "_features"   + nFeatures
-		+ ".arff";
+		+ Utils.RANKING_EXTENSION;
 	}
 	
-	public void selection() throws Exception {
-		final List<Instances> filteredInstances = new ArrayList<Instances>(m_conf.m_nDatasets);
-		final List<List<Future<double[][]>>> competitionWrappersRankings = new ArrayList<List<Future<double[][]>>>(m_conf.m_nDatasets);
+	// Feature selection of one dataset as a chain of stages: filters rankings,
+	// their aggregation and cut, wrappers rankings, their aggregation and output.
+	// Every stage is started by the last task of the previous one, so no thread
+	// waits for a stage to complete and datasets proceed independently.
+	// Seeds are drawn from the pipeline's own random sequence while queuing
+	// the tasks, so they don't depend on the order tasks run in.
+	private class Pipeline {
+		final String m_dataset;
+		final Random m_random;
+		final FutureTask<Void> m_done;
 		
-		for(final String dataset: m_conf.m_datasetNames) {
-			Instances data = getCompetitionDataset(dataset);
-						
-			final int nFiltersRankings = m_conf.m_nFilters * m_conf.m_featureSelectionIterations;
-			final List<Future<double[][]>> filtersRankingsList = new ArrayList<Future<double[][]>>(nFiltersRankings);
-			for (final ASEvaluation filter : m_conf.m_filters) {
-				// We use a copy of the filter for thread safety
-				for (final ASEvaluation filterCopy : ASEvaluation.makeCopies(filter, m_conf.m_featureSelectionIterations)) {
-					// We use a copy of the dataset for thread safety
-					final Instances dataCopy = new Instances(data);
-					filtersRankingsList.add(m_threadExecutor.submit(new Callable<double[][]>() {
-					    public double[][] call() throws Exception {
-							final FilterExp fexp = new FilterExp(dataCopy, filterCopy, m_conf.m_featureSelectionFolds);
-					    	System.out.println("Filter start");
-					    	final double[][] ret = fexp.getRankedAttributes();
-					    	System.out.println("Filter end");
-					    	return ret;
-					    }
-					}));
+		volatile Throwable m_failure = null;
+		
+		Pipeline(final String dataset) {
+			m_dataset = dataset;
+			m_random  = new Random(m_conf.m_random.nextLong());
+			m_done = new FutureTask<Void>(new Callable<Void>() {
+				public Void call() throws Exception {
+					if (m_failure instanceof Error) {throw (Error) m_failure;}
+					if (m_failure instanceof Exception) {throw (Exception) m_failure;}
+					if (m_failure != null) {throw new Exception(m_failure);}
+					return null;
+				}
+			});
+		}
+		
+		// Any failure, errors included, completes the pipeline, so that
+		// selection() never waits for a pipeline that will not go on
+		void fail(final Throwable e) {
+			m_failure = e;
+			m_done.run();
+		}
+		
+		// Reading the dataset comes before any other task, as it queues the first ones
+		void start() {
+			m_threadExecutor.execute(m_runtime.task(Double.MAX_VALUE, 1, new Runnable() {
+				public void run() {
+					try {filters(getCompetitionDataset(m_dataset));}
+					catch (Throwable e) {fail(e);}
+				}
+			}));
+		}
+		
+		// Rankings of a stage, aggregated one round at a time as its tasks
+		// complete: a round holds an iteration of every evaluator. When every
+		// round is done the aggregate ranking is handed to the next stage.
+		// With early stopping, once the best 'topK' features stay the same for
+		// enough rounds the tasks of the following rounds are cancelled; only
+		// then rankings wait for their round to be complete, otherwise they
+		// are aggregated as soon as they come.
+		// Stages count one more pending task while queuing, released by
+		// release(), so they can't complete before all tasks are queued.
+		// Every ranking computed is recorded in the journal: when resuming,
+		// rankings recorded by a previous run are used instead of queuing
+		// their tasks again.
+		// Tasks are queued with their predicted running time, plus the one of
+		// what can only start after them, and timed once they run. They take
+		// the cores of the work they fork, as declared by 'parallelism'.
+		abstract class Stage {
+			final int m_topK;
+			final RankAggregator m_aggregator;
+			final int m_nRounds;
+			// Per round: tasks still running, their rankings and futures
+			final int[] m_roundPending;
+			final List<List<double[][]>> m_roundRankings;
+			final List<List<Future<double[][]>>> m_roundTasks;
+			final AtomicInteger m_pending = new AtomicInteger(1);
+			
+			// Rounds from 'm_endRound' on are cancelled
+			int m_endRound;
+			int m_nextRound = 0;
+			int m_stableRounds = 0;
+			int[] m_top = null;
+			Throwable m_failure = null;
+			
+			Stage(final Instances data, final int topK) {
+				m_topK       = topK;
+				m_aggregator = new RankAggregator(data.numAttributes(), 
+						m_conf.m_rankAggregation, m_conf.m_rankAggregationRrfK, m_conf.m_rankAggregationTrim);
+				m_nRounds    = m_conf.m_featureSelectionIterations;
+				m_endRound   = m_nRounds;
+				m_roundPending  = new int[m_nRounds];
+				m_roundRankings = new ArrayList<List<double[][]>>(m_nRounds);
+				m_roundTasks    = new ArrayList<List<Future<double[][]>>>(m_nRounds);
+				for (int r = 0; r < m_nRounds; r++) {
+					// Rounds are pending while queuing too
+					m_roundPending[r] = 1;
+					m_roundRankings.add(new ArrayList<double[][]>());
+					m_roundTasks.add(new ArrayList<Future<double[][]>>());
+				}
+			}
+			
+			abstract void next(final double[][] ranking) throws Exception;
+			
+			int[] allRounds() {
+				final int[] rounds = new int[m_nRounds];
+				for (int r = 0; r < m_nRounds; r++) {rounds[r] = r;}
+				return rounds;
+			}
+			
+			// Queues a task whose ranking counts for the given rounds, in
+			// ascending order. Tasks of cancelled rounds are not queued.
+			// The key identifies the task in the journal.
+			void add(
+					final String key, 
+					final CostModel.Cost cost, 
+					final double tail, 
+					final int parallelism, 
+					final Callable<double[][]> task, 
+					final int... rounds) throws IOException {
+				final TaskJournal journal = m_conf.journal();
+				final double[][] recorded = journal.ranking(key);
+				final FutureTask<double[][]> future = new FutureTask<double[][]>(new Callable<double[][]>() {
+					public double[][] call() throws Exception {
+						if (recorded != null) {return recorded;}
+						final long start = System.nanoTime();
+						final double[][] ranking = task.call();
+						cost.record(System.nanoTime() - start);
+						journal.record(key, ranking);
+						return ranking;
+					}
+				}) {
+					@Override
+					protected void done() {
+						try {completed(this, rounds);}
+						finally {if (m_pending.decrementAndGet() == 0) {finish();}}
+					}
+				};
+				synchronized (this) {
+					if (rounds[0] >= m_endRound) {return;}
+					m_pending.incrementAndGet();
+					for (final int r : rounds) {
+						m_roundPending[r]++;
+						m_roundTasks.get(r).add(future);
+					}
 				}
+				if (recorded != null) {
+					future.run();
+				} else {
+					m_threadExecutor.execute(m_runtime.task(cost.seconds() + tail, parallelism, future));
+				}
+			}
+			
+			void release() {
+				synchronized (this) {
+					for (int r = 0; r < m_nRounds; r++) {m_roundPending[r]--;}
+					aggregate();
+				}
+				if (m_pending.decrementAndGet() == 0) {finish();}
 			}
 			
-			if (filtersRankingsList.size() > 0) {
-				data = Utils.reorderInstances(data, filtersRankingsList);
-				filtersRankingsList.clear();
-				data = Utils.keepNFeatures(data, m_conf.m_nMaxFeatures);
-				filteredInstances.add(data);
+			synchronized void completed(final Future<double[][]> future, final int[] rounds) {
+				if (future.isCancelled()) {return;}
+				try {
+					final double[][] ranking = future.get();
+					for (final int r : rounds) {
+						if (m_conf.m_earlyStopping) {
+							m_roundRankings.get(r).add(ranking);
+						} else {
+							m_aggregator.add(ranking);
+						}
+						m_roundPending[r]--;
+					}
+					aggregate();
+				} catch (ExecutionException e) {
+					// Nothing else is worth computing
+					m_failure = e.getCause();
+					cancelFrom(0);
+				} catch (Throwable e) {
+					m_failure = e;
+					cancelFrom(0);
+				}
+			}
+			
+			// Rounds are aggregated in order, as soon as all of their rankings are in
+			void aggregate() {
+				while (m_nextRound < m_endRound && m_roundPending[m_nextRound] == 0) {
+					final List<double[][]> rankings = m_roundRankings.get(m_nextRound);
+					for (final double[][] ranking : rankings) {m_aggregator.add(ranking);}
+					rankings.clear();
+					m_nextRound++;
+					if (m_conf.m_earlyStopping && converged() && m_nextRound < m_endRound) {
+						System.out.println("Rankings of " + m_dataset + " stable after " + m_nextRound + " iterations");
+						cancelFrom(m_nextRound);
+					}
+				}
 			}
 			
-			final int nWrappersRankings = m_conf.m_nWrappers * m_conf.m_featureSelectionIterations;
-			final List<Future<double[][]>> wrappersRankingsList = new ArrayList<Future<double[][]>>(nWrappersRankings);
+			// Converged when the best features shared with the previous
+			// aggregate have been enough for enough rounds
+			boolean converged() {
+				final int[] top = m_aggregator.top(m_topK);
+				if (m_top != null) {
+					int nShared = 0;
+					for (final int a : top) {
+						for (final int b : m_top) {if (a == b) {nShared++; break;}}
+					}
+					final boolean stable = top.length == 0 || nShared >= m_conf.m_earlyStoppingOverlap * top.length;
+					m_stableRounds = stable ? m_stableRounds + 1 : 0;
+				}
+				m_top = top;
+				return m_stableRounds >= m_conf.m_earlyStoppingRounds;
+			}
+			
+			void cancelFrom(final int round) {
+				m_endRound = round;
+				for (int r = round; r < m_nRounds; r++) {
+					for (final Future<double[][]> task : m_roundTasks.get(r)) {task.cancel(false);}
+				}
+			}
+			
+			void finish() {
+				if (m_failure != null) {fail(m_failure); return;}
+				try {next(m_aggregator.ranking());}
+				catch (Throwable e) {fail(e);}
+			}
+		}
+		
+		void filters(final Instances data) throws Exception {
+			if (m_conf.m_nFilters == 0) {wrappers(data); return;}
+			
+			// Once every filter is done, features are sorted by their average 
+			// ranking and only the best ones are passed to the wrappers
+			final Stage stage = new Stage(data, m_conf.m_nMaxFeatures) {
+				void next(final double[][] ranking) throws Exception {
+					wrappers(Utils.reorderInstances(data, ranking, m_conf.m_nMaxFeatures));
+				}
+			};
+			final String dataKey = Long.toHexString(SubsetMeritCache.fingerprint(data));
+			final int nRows     = data.numInstances();
+			final int nFeatures = data.numAttributes() - 1;
+			// Wrappers start once every filter is done: the longest of them follows every filter
+			double wrappersTail = 0;
 			for (final Classifier wrapper : m_conf.m_wrappers) {
-				// We use a copy of the classifier for thread safety
-				for (final Classifier wrapperCopy : Classifier.makeCopies(wrapper, m_conf.m_featureSelectionIterations)) {
-					// We use a copy of the dataset for thread safety
-					final Instances dataCopy = new Instances(data);
-					wrappersRankingsList.add(m_threadExecutor.submit(new Callable<double[][]>() {
+				wrappersTail = Math.max(wrappersTail, 
+						m_costs.wrapper(wrapper, nRows, Math.min(m_conf.m_nMaxFeatures, nFeatures)).seconds());
+			}
+			// Dataset is discretized and counted once for all of the filters it computes,
+			// forking the tables of the attributes
+			final FilterEngine engine = new FilterEngine(
+					data, m_runtime.pool(), m_conf.m_filterResampling, m_conf.m_filterSubsampleRatio);
+			// We use a copy of the filter for thread safety
+			final List<ASEvaluation[]> filterCopies = new ArrayList<ASEvaluation[]>(m_conf.m_nFilters);
+			for (final ASEvaluation filter : m_conf.m_filters) {
+				filterCopies.add(ASEvaluation.makeCopies(filter, m_conf.m_featureSelectionIterations));
+			}
+			// Tasks are queued one iteration of every filter at a time
+			for (int i = 0; i < m_conf.m_featureSelectionIterations; i++) {
+				// Each iteration resamples the same rows for all filters
+				final long sampleSeed = engine.resamples() ? m_random.nextLong() : 0;
+				for (int f = 0; f < m_conf.m_nFilters; f++) {
+					final ASEvaluation filter = filterCopies.get(f)[i];
+					final String filterKey = TaskJournal.key("filter", m_dataset, dataKey, TaskJournal.spec(filter));
+					if (FilterEngine.handles(filter) && engine.resamples()) {
+						final String key = TaskJournal.key(filterKey, m_conf.m_filterResampling, m_conf.m_filterSubsampleRatio, sampleSeed);
+						stage.add(key, m_costs.filter(filter, nRows, nFeatures), wrappersTail, nFeatures, new Callable<double[][]>() {
+						    public double[][] call() throws Exception {
+						    	return positionalMerits(engine.ranking(filter, new Random(sampleSeed)));
+						    }
+						}, i);
+					} else if (FilterEngine.handles(filter)) {
+						// Same ranking at every iteration: computed once and counted for all of them
+						if (i > 0) {continue;}
+						stage.add(filterKey, m_costs.filter(filter, nRows, nFeatures), wrappersTail, nFeatures, new Callable<double[][]>() {
+						    public double[][] call() throws Exception {
+						    	return positionalMerits(engine.ranking(filter));
+						    }
+						}, stage.allRounds());
+					} else {
+						final long seed = m_random.nextLong();
+						final String key = TaskJournal.key(filterKey, m_conf.m_featureSelectionFolds, seed);
+						final FilterExp fexp = new FilterExp(data, filter, m_conf.m_featureSelectionFolds, new Random(seed));
+						stage.add(key, m_costs.filter(filter, nRows, nFeatures), wrappersTail, 1, new Callable<double[][]>() {
+						    public double[][] call() throws Exception {
+						    	System.out.println("Filter start");
+						    	final double[][] ret = fexp.getRankedAttributes();
+						    	System.out.println("Filter end");
+						    	return ret;
+						    }
+						}, i);
+					}
+				}
+			}
+			stage.release();
+		}
+		
+		void wrappers(final Instances data) throws Exception {
+			if (m_conf.m_nWrappers == 0) {output(data); return;}
+			
+			// Once every wrapper is done, features are sorted by their average ranking
+			final int[] nFeatures = m_conf.m_featureSelectionNFeatures;
+			final Stage stage = new Stage(data, nFeatures[nFeatures.length - 1]) {
+				void next(final double[][] ranking) throws Exception {
+					output(Utils.reorderInstances(data, ranking));
+				}
+			};
+			final long fingerprint = SubsetMeritCache.fingerprint(data);
+			// We use a copy of the classifier for thread safety
+			final List<Classifier[]> wrapperCopies = new ArrayList<Classifier[]>(m_conf.m_nWrappers);
+			for (final Classifier wrapper : m_conf.m_wrappers) {
+				wrapperCopies.add(Classifier.makeCopies(wrapper, m_conf.m_featureSelectionIterations));
+			}
+			// Tasks are queued one iteration of every wrapper at a time
+			for (int i = 0; i < m_conf.m_featureSelectionIterations; i++) {
+				for (int w = 0; w < m_conf.m_nWrappers; w++) {
+					final Classifier wrapper = wrapperCopies.get(w)[i];
+					final long seed = m_random.nextLong();
+					final String key = TaskJournal.key("wrapper", m_dataset, Long.toHexString(fingerprint), 
+							TaskJournal.spec(wrapper), m_conf.m_featureSelectionFolds, seed);
+					final WrapperExp wexp = new WrapperExp(data, fingerprint, wrapper, m_conf.m_featureSelectionFolds, new Random(seed));
+					final CostModel.Cost cost = m_costs.wrapper(wrapper, data.numInstances(), data.numAttributes() - 1);
+					// Steps of the search fork half of the features on average
+					stage.add(key, cost, 0, data.numAttributes() / 2, new Callable<double[][]>() {
 						public double[][] call() throws Exception {
-							final WrapperExp wexp = new WrapperExp(dataCopy, wrapperCopy, m_conf.m_featureSelectionFolds);
 							System.out.println("Wrapper start");
 					    	final double[][] ret = wexp.getRankedAttributes();
 							System.out.println("Wrapper end");
 					    	return ret;
 					    }
-					}));
+					}, i);
 				}
 			}
-			competitionWrappersRankings.add(wrappersRankingsList);
+			stage.release();
 		}
-
-		for(int i = 0; i < m_conf.m_nDatasets; i++) {
-			final String dataset = m_conf.m_datasetNames[i];
-			final List<Future<double[][]>> wrappersRankingsList = competitionWrappersRankings.get(i);
-
-			Instances data = filteredInstances.get(i);
-//			Utils.saveInstances(data, File.createTempFile("filtersDataset", ".arff"));
-			if (wrappersRankingsList.size() > 0) {
-				data = Utils.reorderInstances(data, wrappersRankingsList);
-				wrappersRankingsList.clear();
+		
+		void output(final Instances data) throws Exception {
+			// Feature subsets are the prefixes of the ranking: it is saved only once
+			// and following phases will keep as many features as they need.
+			final List<String> ranking = new ArrayList<String>(data.numAttributes() - 1);
+			for (int j = 0; j < data.numAttributes(); j++) {
+				if (j != data.classIndex()) {ranking.add(data.attribute(j).name());}
 			}
+			final String outFileName = getOutFileName(m_dataset);
+			System.out.println(outFileName);
+			Utils.saveRanking(ranking, new File(outFileName));
+			m_done.run();
+		}
+	}
+	
+	public void selection() throws Exception {
+		try {
+			// Pipelines draw their seeds from the one the journal may restore
+			m_conf.journal();
+			final File cacheFile = m_conf.m_subsetCacheFile != null ? new File(m_conf.m_subsetCacheFile) : null;
+			if (cacheFile != null && cacheFile.exists()) {m_meritCache.load(cacheFile);}
 			
-			for (final int nFeature: m_conf.m_featureSelectionNFeatures) {
-				final String outFileName = getOutFileName(dataset, nFeature);
-				System.out.println(outFileName);
-				Utils.saveInstances(Utils.keepNFeatures(data, nFeature), outFileName);
+			// Every dataset starts at once, the pool is fed by all of them together
+			final List<Pipeline> pipelines = new ArrayList<Pipeline>(m_conf.m_nDatasets);
+			for(final String dataset: m_conf.m_datasetNames) {
+				final Pipeline pipeline = new Pipeline(dataset);
+				pipelines.add(pipeline);
+				pipeline.start();
 			}
+			for (final Pipeline pipeline : pipelines) {pipeline.m_done.get();}
+			pipelines.clear();
+			
+			System.out.println(m_meritCache);
+			if (cacheFile != null) {m_meritCache.save(cacheFile);}
+		} catch (final Throwable e) {
+			// Tasks of the other datasets are not worth running once one failed
+			m_threadExecutor.shutdownNow();
+			throw e;
 		}
-
-		filteredInstances.clear();
-		competitionWrappersRankings.clear();
-				
 		m_threadExecutor.shutdown();
 	}
 	
@@ -0,0 +1,284 @@
+package mining;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.attributeSelection.ASEvaluation;
+import weka.attributeSelection.ChiSquaredAttributeEval;
+import weka.attributeSelection.GainRatioAttributeEval;
+import weka.attributeSelection.InfoGainAttributeEval;
+import weka.attributeSelection.SymmetricalUncertAttributeEval;
+import weka.core.ContingencyTables;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+
+// Ranks attributes as Weka's ChiSquared, InfoGain, GainRatio and SymmetricalUncert
+// evaluators do, followed by a Ranker. Each of them discretizes the whole
+// dataset and counts its own contingency tables on every run; here the dataset
+// is discretized once, its bins kept as primitive columns, and the table of
+// each attribute is counted once, in parallel over the attributes, to compute
+// all of the measures together.
+// Rankings can also be computed on a resample of the rows, a bootstrap or a
+// subsample: the bins of the whole dataset are reused, only the tables are
+// counted again with the weights of the resampled rows.
+public class FilterEngine {
+
+	public static final int CHI_SQUARED             = 0;
+	public static final int INFO_GAIN               = 1;
+	public static final int GAIN_RATIO              = 2;
+	public static final int SYMMETRICAL_UNCERTAINTY = 3;
+	private static final int N_MEASURES = 4;
+
+	final Instances    m_data;
+	final ForkJoinPool m_pool;
+	
+	// "none", "bootstrap" or "subsample", with the share of rows of a subsample
+	final String m_resampling;
+	final double m_subsampleRatio;
+
+	// Discretized dataset: per attribute its number of bins and the
+	// bin of every row (-1 when missing), class index of every row
+	// (-1 when missing) and weights of the rows
+	int[]    m_nBins;
+	int[][]  m_bins;
+	int[]    m_classes;
+	double[] m_weights;
+	int      m_nClasses;
+
+	// Per measure, the merit of every attribute
+	double[][] m_merits = null;
+
+	public FilterEngine(
+			final Instances data,
+			final ForkJoinPool pool,
+			final String resampling,
+			final double subsampleRatio) {
+		m_data           = data;
+		m_pool           = pool;
+		m_resampling     = resampling;
+		m_subsampleRatio = subsampleRatio;
+	}
+
+	public boolean resamples() {
+		return !m_resampling.equals("none");
+	}
+
+	// Filters whose ranking this engine gives: the supported evaluators,
+	// when they merge missing values and discretize numeric attributes
+	public static boolean handles(final ASEvaluation filter) {
+		if (filter instanceof ChiSquaredAttributeEval) {
+			final ChiSquaredAttributeEval chiSquared = (ChiSquaredAttributeEval) filter;
+			return chiSquared.getMissingMerge() && !chiSquared.getBinarizeNumericAttributes();
+		}
+		if (filter instanceof InfoGainAttributeEval) {
+			final InfoGainAttributeEval infoGain = (InfoGainAttributeEval) filter;
+			return infoGain.getMissingMerge() && !infoGain.getBinarizeNumericAttributes();
+		}
+		if (filter instanceof GainRatioAttributeEval) {
+			return ((GainRatioAttributeEval) filter).getMissingMerge();
+		}
+		if (filter instanceof SymmetricalUncertAttributeEval) {
+			return ((SymmetricalUncertAttributeEval) filter).getMissingMerge();
+		}
+		return false;
+	}
+
+	private static int measure(final ASEvaluation filter) {
+		if (filter instanceof ChiSquaredAttributeEval) {return CHI_SQUARED;}
+		if (filter instanceof InfoGainAttributeEval)   {return INFO_GAIN;}
+		if (filter instanceof GainRatioAttributeEval)  {return GAIN_RATIO;}
+		return SYMMETRICAL_UNCERTAINTY;
+	}
+
+	// Same ranking, attribute index and merit from best to worst, AttributeSelection
+	// gives for the filter with a Ranker
+	public double[][] ranking(final ASEvaluation filter) throws Exception {
+		return ranking(merits()[measure(filter)]);
+	}
+
+	// Ranking on the resample of the rows drawn by the random generator
+	public double[][] ranking(final ASEvaluation filter, final Random random) throws Exception {
+		discretizeOnce();
+		return ranking(merits(resample(random))[measure(filter)]);
+	}
+
+	private double[][] ranking(final double[] merits) {
+		final int classIndex = m_data.classIndex();
+		final int[]    attributes      = new int[m_data.numAttributes() - 1];
+		final double[] attributeMerits = new double[attributes.length];
+		for (int a = 0, i = 0; a < m_data.numAttributes(); a++) {
+			if (a == classIndex) {continue;}
+			attributes[i] = a; attributeMerits[i] = merits[a]; i++;
+		}
+		// Sorted as Ranker does, so ties come in the same order
+		final int[] sorted = weka.core.Utils.sort(attributeMerits);
+		final double[][] ranking = new double[sorted.length][2];
+		for (int i = 0; i < sorted.length; i++) {
+			final int worst = sorted[sorted.length - 1 - i];
+			ranking[i][0] = attributes[worst];
+			ranking[i][1] = attributeMerits[worst];
+		}
+		return ranking;
+	}
+
+	// Merits on the whole dataset are computed by the first filter asking for them
+	public synchronized double[][] merits() throws Exception {
+		if (m_merits == null) {
+			discretizeOnce();
+			m_merits = merits(m_weights);
+		}
+		return m_merits;
+	}
+
+	private double[][] merits(final double[] weights) {
+		final double[][] merits = new double[N_MEASURES][m_nBins.length];
+		m_pool.invoke(new Tables(weights, merits, 0, m_nBins.length));
+		return merits;
+	}
+
+	// Weights of the rows of a resample: a bootstrap weighs each row by the
+	// times it is drawn, a subsample keeps a share of rows drawn without replacement
+	private double[] resample(final Random random) {
+		final int nInstances = m_weights.length;
+		final double[] weights = new double[nInstances];
+		if (m_resampling.equals("bootstrap")) {
+			for (int i = 0; i < nInstances; i++) {weights[random.nextInt(nInstances)] += 1;}
+		} else {
+			final int nSampled = (int) Math.round(nInstances * m_subsampleRatio);
+			final int[] rows = new int[nInstances];
+			for (int i = 0; i < nInstances; i++) {rows[i] = i;}
+			for (int i = 0; i < nSampled; i++) {
+				final int j = i + random.nextInt(nInstances - i);
+				final int row = rows[j]; rows[j] = rows[i]; rows[i] = row;
+				weights[row] = 1;
+			}
+		}
+		for (int i = 0; i < nInstances; i++) {weights[i] *= m_weights[i];}
+		return weights;
+	}
+
+	private synchronized void discretizeOnce() throws Exception {
+		if (m_bins == null) {discretize();}
+	}
+
+	private void discretize() throws Exception {
+		if (!m_data.classAttribute().isNominal()) {
+			throw new Exception("Filters need a nominal class.");
+		}
+		// Same discretization the evaluators apply
+		final Discretize discretize = new Discretize();
+		discretize.setUseBetterEncoding(true);
+		discretize.setInputFormat(m_data);
+		final Instances data = Filter.useFilter(m_data, discretize);
+
+		final int nAttributes = data.numAttributes();
+		final int nInstances  = data.numInstances();
+		final int classIndex  = data.classIndex();
+		m_nClasses = data.classAttribute().numValues();
+		m_nBins    = new int[nAttributes];
+		m_bins     = new int[nAttributes][];
+		m_classes  = new int[nInstances];
+		m_weights  = new double[nInstances];
+		for (int a = 0; a < nAttributes; a++) {
+			if (a != classIndex) {
+				m_nBins[a] = data.attribute(a).numValues();
+				m_bins[a]  = new int[nInstances];
+			}
+		}
+		for (int i = 0; i < nInstances; i++) {
+			final Instance in = data.instance(i);
+			m_classes[i] = in.classIsMissing() ? -1 : (int) in.classValue();
+			m_weights[i] = in.weight();
+			for (int a = 0; a < nAttributes; a++) {
+				if (a != classIndex) {
+					m_bins[a][i] = in.isMissing(a) ? -1 : (int) in.value(a);
+				}
+			}
+		}
+	}
+
+	private class Tables extends RecursiveAction {
+		static final long serialVersionUID = 1L;
+
+		final double[]   m_rowWeights;
+		final double[][] m_merits;
+		final int m_from;
+		final int m_to;
+
+		Tables(final double[] rowWeights, final double[][] merits, final int from, final int to) {
+			m_rowWeights = rowWeights;
+			m_merits = merits;
+			m_from   = from;
+			m_to     = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > 1) {
+				final int middle = (m_from + m_to) >>> 1;
+				invokeAll(
+						new Tables(m_rowWeights, m_merits, m_from, middle),
+						new Tables(m_rowWeights, m_merits, middle, m_to));
+				return;
+			}
+			final int a = m_from;
+			if (m_bins[a] == null) {return;}
+			final double[][] table = table(m_bins[a], m_nBins[a], m_rowWeights);
+			m_merits[CHI_SQUARED][a]             = ContingencyTables.chiVal(ContingencyTables.reduceMatrix(table), false);
+			m_merits[INFO_GAIN][a]               = ContingencyTables.entropyOverColumns(table)
+			                                     - ContingencyTables.entropyConditionedOnRows(table);
+			m_merits[GAIN_RATIO][a]              = ContingencyTables.gainRatio(table);
+			m_merits[SYMMETRICAL_UNCERTAINTY][a] = ContingencyTables.symmetricalUncertainty(table);
+		}
+	}
+
+	// Contingency table of bins and classes of an attribute, with the
+	// counts of missing values spread as the evaluators do
+	double[][] table(final int[] bins, final int nBins, final double[] weights) {
+		final int nClasses = m_nClasses;
+		final int width = nClasses + 1;
+		// Last row and last column count missing bins and classes
+		final double[] counts = new double[(nBins + 1) * width];
+		final int nInstances = bins.length;
+		for (int i = 0; i < nInstances; i++) {
+			final int bin = bins[i] < 0 ? nBins : bins[i];
+			final int cls = m_classes[i] < 0 ? nClasses : m_classes[i];
+			counts[bin * width + cls] += weights[i];
+		}
+
+		final double[] rowSums    = new double[nBins];
+		final double[] columnSums = new double[nClasses];
+		double sum = 0;
+		for (int i = 0; i < nBins; i++) {
+			for (int j = 0; j < nClasses; j++) {
+				rowSums[i]    += counts[i * width + j];
+				columnSums[j] += counts[i * width + j];
+			}
+			sum += rowSums[i];
+		}
+		if (!weka.core.Utils.gr(sum, 0)) {
+			// Nothing to spread missing counts on: table is kept whole
+			final double[][] table = new double[nBins + 1][width];
+			for (int i = 0; i <= nBins; i++) {System.arraycopy(counts, i * width, table[i], 0, width);}
+			return table;
+		}
+		final double missingBoth = counts[nBins * width + nClasses];
+		final double[][] table = new double[nBins][nClasses];
+		for (int i = 0; i < nBins; i++) {
+			final double missingClass = counts[i * width + nClasses];
+			for (int j = 0; j < nClasses; j++) {
+				final double count = counts[i * width + j];
+				final double missingBin = counts[nBins * width + j];
+				// Same order of additions as the evaluators
+				double addition = (rowSums[i] / sum) * missingBin;
+				addition += (columnSums[j] / sum) * missingClass;
+				addition += (count / sum) * missingBoth;
+				table[i][j] = count + addition;
+			}
+		}
+		return table;
+	}
+}
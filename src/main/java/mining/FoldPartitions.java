@@ -0,0 +1,166 @@
+package mining;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+
+// Service computing the assignment of rows to cross validation folds.
+// Assignment depends only on the number of rows and on the class column,
+// so it is computed once per (dataset, run, seed) as compact int arrays and
+// shared by every classifier and every feature subset of the same dataset:
+// each of them sees exactly the same folds, which keeps t-tests paired.
+// Rows are shuffled, stratified and split exactly as Weka's
+// Instances.randomize, stratify, trainCV and testCV would do.
+public class FoldPartitions {
+
+	final int m_nFolds;
+
+	final ConcurrentHashMap<String, FutureTask<Partition>> m_partitions =
+			new ConcurrentHashMap<String, FutureTask<Partition>>();
+
+	public FoldPartitions(final int nFolds) {
+		m_nFolds = nFolds;
+	}
+
+	// Folds of one run over one dataset
+	public class Partition {
+		// Identifies the partition among the ones of the service
+		final String m_key;
+		// Row indexes in randomized and stratified order
+		final int[] m_order;
+		// State of the random generator before each training set is shuffled
+		final SerializedObject[] m_foldRandoms;
+
+		Partition(final String key, final double[] classValues, final boolean nominalClass, final long seed) throws Exception {
+			m_key = key;
+			final int nInstances = classValues.length;
+			final Random random = new Random(seed);
+
+			m_order = new int[nInstances];
+			for (int i = 0; i < nInstances; i++) {m_order[i] = i;}
+			randomize(m_order, random);
+			if (nominalClass) {
+				stratify(m_order, classValues);
+			}
+
+			m_foldRandoms = new SerializedObject[m_nFolds];
+			for (int fold = 0; fold < m_nFolds; fold++) {
+				m_foldRandoms[fold] = new SerializedObject(random);
+				// Replay the draws made by shuffling this fold's training set
+				final int nTrain = nInstances - testSize(nInstances, fold);
+				for (int j = nTrain - 1; j > 0; j--) {random.nextInt(j + 1);}
+			}
+		}
+
+		public int[] test(final int fold) {
+			final int nInstances = m_order.length;
+			final int first = testFirst(nInstances, fold);
+			final int[] test = new int[testSize(nInstances, fold)];
+			System.arraycopy(m_order, first, test, 0, test.length);
+			return test;
+		}
+
+		public int[] train(final int fold) throws Exception {
+			final int nInstances = m_order.length;
+			final int first = testFirst(nInstances, fold);
+			final int nTest = testSize(nInstances, fold);
+			final int[] train = new int[nInstances - nTest];
+			System.arraycopy(m_order, 0, train, 0, first);
+			System.arraycopy(m_order, first + nTest, train, first, nInstances - first - nTest);
+			randomize(train, (Random) m_foldRandoms[fold].getObject());
+			return train;
+		}
+	}
+
+	// Same algorithm as Instances.randomize
+	private static void randomize(final int[] rows, final Random random) {
+		for (int j = rows.length - 1; j > 0; j--) {
+			final int k = random.nextInt(j + 1);
+			final int tmp = rows[j]; rows[j] = rows[k]; rows[k] = tmp;
+		}
+	}
+
+	// Same algorithm as Instances.stratify: rows are grouped by class
+	// by the same sequence of swaps, then dealt to folds in turn.
+	private void stratify(final int[] rows, final double[] classValues) {
+		final int nInstances = rows.length;
+		int index = 1;
+		while (index < nInstances) {
+			final double class1 = classValues[rows[index - 1]];
+			for (int j = index; j < nInstances; j++) {
+				final double class2 = classValues[rows[j]];
+				if (class1 == class2 || (Double.isNaN(class1) && Double.isNaN(class2))) {
+					final int tmp = rows[index]; rows[index] = rows[j]; rows[j] = tmp;
+					index++;
+				}
+			}
+			index++;
+		}
+		final int[] stratified = new int[nInstances];
+		int k = 0;
+		for (int start = 0; k < nInstances; start++) {
+			for (int j = start; j < nInstances; j += m_nFolds) {stratified[k++] = rows[j];}
+		}
+		System.arraycopy(stratified, 0, rows, 0, nInstances);
+	}
+
+	// Same arithmetic as Instances.testCV
+	private int testSize(final int nInstances, final int fold) {
+		int nTest = nInstances / m_nFolds;
+		if (fold < nInstances % m_nFolds) {nTest++;}
+		return nTest;
+	}
+
+	private int testFirst(final int nInstances, final int fold) {
+		final int offset = fold < nInstances % m_nFolds ? fold : nInstances % m_nFolds;
+		return fold * (nInstances / m_nFolds) + offset;
+	}
+
+	// Folds only depend on the class column: datasets sharing it share the folds.
+	private static double[] classValues(final Instances data) {
+		final int nInstances = data.numInstances();
+		final double[] classValues = new double[nInstances];
+		for (int i = 0; i < nInstances; i++) {
+			final Instance in = data.instance(i);
+			classValues[i] = in.classIsMissing() ? Double.NaN : in.classValue();
+		}
+		return classValues;
+	}
+
+	private static String fingerprint(final double[] classValues) {
+		final CRC32 crc = new CRC32();
+		for (final double value : classValues) {
+			final long bits = Double.doubleToLongBits(value);
+			for (int shift = 0; shift < 64; shift += 8) {crc.update((int) (bits >>> shift));}
+		}
+		return classValues.length + ":" + Long.toHexString(crc.getValue());
+	}
+
+	// Partition of the dataset for a run, computed by the first caller and shared
+	// with the others. As in Weka's experiments, the run number is the seed.
+	public Partition get(final Instances data, final int run) throws Exception {
+		return get(data, run, run);
+	}
+
+	public Partition get(final Instances data, final int run, final long seed) throws Exception {
+		final double[] classValues = classValues(data);
+		final boolean nominalClass = data.classAttribute().isNominal();
+		final String key = fingerprint(classValues) + "/" + nominalClass + "/" + run + "/" + seed;
+		FutureTask<Partition> partition = m_partitions.get(key);
+		if (partition == null) {
+			final FutureTask<Partition> newPartition = new FutureTask<Partition>(new Callable<Partition>() {
+				public Partition call() throws Exception {return new Partition(key, classValues, nominalClass, seed);}
+			});
+			partition = m_partitions.putIfAbsent(key, newPartition);
+			if (partition == null) {partition = newPartition;}
+		}
+		partition.run();
+		return partition.get();
+	}
+}
@@ -1,7 +1,6 @@
 package mining;
 
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 import conf.Configuration;
@@ -21,16 +20,25 @@ public class ModelSelection {
 	
 	void selection() throws Exception {
 		final CrossValidationEvaluation cv = new CrossValidationEvaluation(m_conf);
-		final ExecutorService threadExecutor = cv.m_threadExecutor;
-		final TestSetEvaluation te = new TestSetEvaluation(m_conf, threadExecutor);
-		if (m_conf.m_doCrossValidation) {
-			te.incrementalExperiment(cv.experiment());
-		} else {
-			System.out.println("WARNING: reusing previous cross validation results");
-			final List<String[]> winners = cv.getWinners();
-			for (final Future<Void> done : te.experiment(winners)) {done.get();}
+		// Test set experiments run on their own executor, while cross validation
+		// is still running: they share the cores of the runtime
+		final TestSetEvaluation te = new TestSetEvaluation(m_conf, null);
+		try {
+			if (m_conf.m_doCrossValidation) {
+				te.incrementalExperiment(cv);
+			} else {
+				System.out.println("WARNING: reusing previous cross validation results");
+				final List<String[]> winners = cv.getWinners();
+				for (final Future<Void> done : te.experiment(winners)) {done.get();}
+			}
+		} catch (final Throwable e) {
+			// Tasks still queued are not worth running once an experiment failed
+			cv.m_threadExecutor.shutdownNow();
+			te.m_threadExecutor.shutdownNow();
+			throw e;
 		}
-		threadExecutor.shutdown();
+		cv.m_threadExecutor.shutdown();
+		te.m_threadExecutor.shutdown();
 	}
 					
 	/**
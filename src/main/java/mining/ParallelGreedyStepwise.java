@@ -0,0 +1,276 @@
+package mining;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import utils.SubsetMeritCache;
+import weka.attributeSelection.ASEvaluation;
+import weka.attributeSelection.ASSearch;
+import weka.attributeSelection.RankedOutputSearch;
+import weka.attributeSelection.SubsetEvaluator;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+
+// Forward greedy stepwise search evaluating the candidate subsets of every
+// step at the same time on a fork/join pool. Subsets and ranking are the same
+// Weka's GreedyStepwise gives with "-R -T -Double.MAX_VALUE -N -1": at every
+// step the attribute giving the best merit is added, the one with the lowest
+// index in case of ties. Selection stops at the first step not improving
+// the merit, ranking goes on until every attribute has been added.
+// Subset evaluators are not thread safe, so each worker evaluates with its
+// own copy of the evaluator, built on the same dataset.
+// Merits can be looked up in and added to a SubsetMeritCache, for evaluators
+// whose options tell them apart (seed included).
+public class ParallelGreedyStepwise extends ASSearch implements RankedOutputSearch {
+
+	static final long serialVersionUID = 1L;
+
+	final transient ForkJoinPool m_pool;
+
+	double  m_threshold             = -Double.MAX_VALUE;
+	int     m_numToSelect           = -1;
+	int     m_calculatedNumToSelect = -1;
+	boolean m_generateRanking       = true;
+
+	// Attributes and merits in the order they were added by the last search
+	double[][] m_ranking = null;
+
+	// Merits of subsets already evaluated on the dataset with the given fingerprint
+	transient SubsetMeritCache m_cache = null;
+	transient long m_fingerprint;
+
+	// Idle evaluators, borrowed by the workers for each evaluation
+	transient ConcurrentLinkedQueue<ASEvaluation> m_evaluators;
+	transient ASEvaluation m_eval;
+	transient Instances    m_data;
+	transient String       m_spec;
+
+	public ParallelGreedyStepwise(final ForkJoinPool pool) {
+		m_pool = pool;
+	}
+
+	public void setMeritCache(final SubsetMeritCache cache, final long fingerprint) {
+		m_cache       = cache;
+		m_fingerprint = fingerprint;
+	}
+
+	@Override
+	public int[] search(final ASEvaluation eval, final Instances data) throws Exception {
+		if (!(eval instanceof SubsetEvaluator)) {
+			throw new Exception(eval.getClass().getName() + " is not a Subset evaluator!");
+		}
+		m_eval = eval;
+		m_data = data;
+		m_evaluators = new ConcurrentLinkedQueue<ASEvaluation>();
+		m_evaluators.add(eval);
+		m_spec = m_cache != null && eval instanceof OptionHandler
+				? eval.getClass().getName() + " " + weka.core.Utils.joinOptions(((OptionHandler) eval).getOptions())
+				: null;
+		try {
+			return stepwise();
+		} finally {
+			m_evaluators = null; m_eval = null; m_data = null; m_spec = null;
+		}
+	}
+
+	private int[] stepwise() throws Exception {
+		final int nAttributes = m_data.numAttributes();
+		final int classIndex = m_data.classIndex();
+		final BitSet group = new BitSet(nAttributes);
+		Double cached = cachedMerit(group);
+		double merit = cached != null ? cached : ((SubsetEvaluator) m_eval).evaluateSubset(group);
+		if (cached == null) {cacheMerit(group, merit);}
+
+		final double[][] ranking = new double[nAttributes][2];
+		int nRanked = 0;
+		int[] selected = null;
+		while (true) {
+			final int[] candidates = new int[nAttributes - group.cardinality()];
+			int nCandidates = 0;
+			for (int i = 0; i < nAttributes; i++) {
+				if (i != classIndex && !group.get(i)) {candidates[nCandidates++] = i;}
+			}
+			if (nCandidates == 0) {break;}
+
+			final double[] merits = evaluate(group, candidates, nCandidates);
+			// Merits are compared in attribute order, so the lowest index wins ties
+			int best = -1;
+			double bestMerit = -Double.MAX_VALUE;
+			for (int c = 0; c < nCandidates; c++) {
+				if (merits[c] > bestMerit) {bestMerit = merits[c]; best = c;}
+			}
+			if (best < 0) {break;}
+
+			if (selected == null && !(bestMerit > merit)) {
+				// No improvement: the subset so far is the selected one
+				selected = attributeList(group);
+				if (!m_generateRanking) {break;}
+			}
+			group.set(candidates[best]);
+			merit = bestMerit;
+			ranking[nRanked][0] = candidates[best];
+			ranking[nRanked][1] = bestMerit;
+			nRanked++;
+		}
+		if (selected == null) {selected = attributeList(group);}
+
+		m_ranking = new double[nRanked][];
+		for (int i = 0; i < nRanked; i++) {m_ranking[i] = ranking[i];}
+		return selected;
+	}
+
+	// Merits of the group with each one of the candidates added
+	private double[] evaluate(final BitSet group, final int[] candidates, final int nCandidates) throws Exception {
+		final double[] merits = new double[nCandidates];
+		// Only candidates not found in the cache are evaluated
+		final int[] pending = new int[nCandidates];
+		int nPending = 0;
+		for (int c = 0; c < nCandidates; c++) {
+			group.set(candidates[c]);
+			final Double cached = cachedMerit(group);
+			group.clear(candidates[c]);
+			if (cached != null) {merits[c] = cached;} else {pending[nPending++] = c;}
+		}
+		if (nPending == 0) {return merits;}
+
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		m_pool.invoke(new Candidates(group, candidates, pending, merits, failure, 0, nPending));
+		if (failure.get() != null) {throw failure.get();}
+		return merits;
+	}
+
+	private Double cachedMerit(final BitSet subset) {
+		return m_spec == null ? null : m_cache.get(m_fingerprint, m_spec, subset);
+	}
+
+	private void cacheMerit(final BitSet subset, final double merit) {
+		if (m_spec != null) {m_cache.put(m_fingerprint, m_spec, subset, merit);}
+	}
+
+	private class Candidates extends RecursiveAction {
+		static final long serialVersionUID = 1L;
+
+		final BitSet   m_group;
+		final int[]    m_candidates;
+		final int[]    m_pending;
+		final double[] m_merits;
+		final AtomicReference<Exception> m_failure;
+		final int m_from;
+		final int m_to;
+
+		Candidates(
+				final BitSet group,
+				final int[] candidates,
+				final int[] pending,
+				final double[] merits,
+				final AtomicReference<Exception> failure,
+				final int from,
+				final int to) {
+			m_group      = group;
+			m_candidates = candidates;
+			m_pending    = pending;
+			m_merits     = merits;
+			m_failure    = failure;
+			m_from       = from;
+			m_to         = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > 1) {
+				final int middle = (m_from + m_to) >>> 1;
+				invokeAll(
+						new Candidates(m_group, m_candidates, m_pending, m_merits, m_failure, m_from, middle),
+						new Candidates(m_group, m_candidates, m_pending, m_merits, m_failure, middle, m_to));
+				return;
+			}
+			if (m_failure.get() != null) {return;}
+			try {
+				final int c = m_pending[m_from];
+				final BitSet subset = (BitSet) m_group.clone();
+				subset.set(m_candidates[c]);
+				final ASEvaluation eval = borrowEvaluator();
+				try {
+					m_merits[c] = ((SubsetEvaluator) eval).evaluateSubset(subset);
+				} finally {m_evaluators.add(eval);}
+				cacheMerit(subset, m_merits[c]);
+			} catch (Exception e) {
+				m_failure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	private ASEvaluation borrowEvaluator() throws Exception {
+		final ASEvaluation idle = m_evaluators.poll();
+		if (idle != null) {return idle;}
+		// Built from its options rather than serialized, so that
+		// the copy doesn't carry a copy of the dataset
+		final ASEvaluation copy = m_eval instanceof OptionHandler
+				? ASEvaluation.forName(m_eval.getClass().getName(), ((OptionHandler) m_eval).getOptions())
+				: ASEvaluation.makeCopies(m_eval, 1)[0];
+		copy.buildEvaluator(m_data);
+		return copy;
+	}
+
+	private static int[] attributeList(final BitSet group) {
+		final int[] list = new int[group.cardinality()];
+		int n = 0;
+		for (int i = group.nextSetBit(0); i >= 0; i = group.nextSetBit(i + 1)) {list[n++] = i;}
+		return list;
+	}
+
+	public double[][] rankedAttributes() throws Exception {
+		if (m_ranking == null) {
+			throw new Exception("Search must be performed before attributes can be ranked.");
+		}
+		if (m_numToSelect > m_ranking.length) {
+			throw new Exception("More attributes requested than exist in the data");
+		}
+		if (m_numToSelect <= 0) {
+			if (m_threshold == -Double.MAX_VALUE) {
+				m_calculatedNumToSelect = m_ranking.length;
+			} else {
+				int count = 0;
+				for (final double[] rank : m_ranking) {
+					if (rank[1] > m_threshold) {count++;}
+				}
+				m_calculatedNumToSelect = count;
+			}
+		}
+		final double[][] ranking = new double[m_ranking.length][];
+		for (int i = 0; i < ranking.length; i++) {ranking[i] = m_ranking[i].clone();}
+		return ranking;
+	}
+
+	public void setThreshold(final double threshold) {
+		m_threshold = threshold;
+	}
+
+	public double getThreshold() {
+		return m_threshold;
+	}
+
+	public void setNumToSelect(final int numToSelect) {
+		m_numToSelect = numToSelect;
+	}
+
+	public int getNumToSelect() {
+		return m_numToSelect;
+	}
+
+	public int getCalculatedNumToSelect() {
+		if (m_numToSelect >= 0) {m_calculatedNumToSelect = m_numToSelect;}
+		return m_calculatedNumToSelect;
+	}
+
+	public void setGenerateRanking(final boolean generateRanking) {
+		m_generateRanking = generateRanking;
+	}
+
+	public boolean getGenerateRanking() {
+		return m_generateRanking;
+	}
+}
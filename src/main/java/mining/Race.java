@@ -0,0 +1,65 @@
+package mining;
+
+import weka.experiment.PairedStats;
+import weka.experiment.PairedStatsCorrected;
+
+// Racing of the models of a cross validation experiment against the baseline,
+// in the style of F-race: runs are done one at a time, and after each of them
+// every model is compared with the baseline on the folds done so far by the
+// corrected resampled t-test, the same PairedCorrectedTTester applies to the
+// results. Once 'm_minRuns' runs are done, models significantly worse than
+// the baseline are not run anymore. With 'm_stopNotBetter', models not
+// better than the baseline on average stop too: the corrected variance
+// hardly shrinks with more runs, so they would hardly become significantly
+// better, but a model can be behind on the first runs only. With
+// 'm_stopWinners', models already significantly better than the baseline
+// stop too.
+public class Race {
+
+	public static final double SIGNIFICANCE = 0.05;
+
+	// Column of the results models are compared on
+	final String  m_column;
+	final int     m_minRuns;
+	final boolean m_stopNotBetter;
+	final boolean m_stopWinners;
+
+	public Race(final String column, final int minRuns, final boolean stopNotBetter, final boolean stopWinners) {
+		m_column        = column;
+		m_minRuns       = minRuns;
+		m_stopNotBetter = stopNotBetter;
+		m_stopWinners   = stopWinners;
+	}
+
+	// Paired comparison of a model with the baseline on the same folds, as
+	// PairedCorrectedTTester does it: differences are the baseline's values
+	// minus the model's, so the model wins when their significance is negative.
+	// Folds missing the value of either of them are left out.
+	public static PairedStats compare(
+			final double[] baseline,
+			final double[] model,
+			final double testTrainRatio) {
+		final PairedStats stats = new PairedStatsCorrected(SIGNIFICANCE, testTrainRatio);
+		for (int i = 0; i < baseline.length; i++) {
+			if (!Double.isNaN(baseline[i]) && !Double.isNaN(model[i])) {stats.add(baseline[i], model[i]);}
+		}
+		stats.calculateDerived();
+		return stats;
+	}
+
+	// Why a model compared with the baseline after 'nRuns' runs stops
+	// racing, null if it goes on
+	public String stop(final PairedStats stats, final int nRuns) {
+		if (nRuns < m_minRuns) {return null;}
+		if (stats.differencesSignificance > 0) {return "significantly worse than baseline";}
+		if (m_stopNotBetter && stats.differencesStats.mean >= 0) {return "not better than baseline";}
+		if (m_stopWinners && stats.differencesSignificance < 0) {return "significantly better than baseline";}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "racing " + m_column + " " + m_minRuns 
+				+ (m_stopNotBetter ? " stop-not-better" : "") + (m_stopWinners ? " stop-winners" : "");
+	}
+}
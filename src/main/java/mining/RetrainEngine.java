@@ -0,0 +1,244 @@
+package mining;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import utils.IndexedInstances;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+// Prequential evaluation on the test set: every instance is predicted by the
+// model trained on the training set and on the test instances before it, then
+// added to them. Retraining from scratch before every instance costs one full
+// training per test instance, so models are brought up to date by a policy:
+// - every: retrained every 'm_every' instances (1 retrains before each one)
+// - time:  retrained whenever the time spent retraining so far is within the
+//          share of 'm_timeBudget' seconds of the instances predicted so far
+// - drift: retrained when the drift detection method of Gama et al. sees the
+//          rate of errors of the model grow significantly
+// With 'm_incremental', models implementing UpdateableClassifier are trained
+// once and then updated with every instance instead, whatever the policy.
+// Predictions are recorded in the Evaluation as they are made, as they would
+// be retraining before each instance.
+// Retraining every few instances, the models of the steps don't depend on each
+// other: given a fork/join pool, they are trained at the same time on prefix
+// views of the training and test sets together, and their predictions are
+// recorded in order once all of them are done.
+public class RetrainEngine {
+
+	final String  m_policy;
+	final int     m_every;
+	final double  m_timeBudget;
+	final boolean m_incremental;
+	
+	// Pool training the steps in parallel, null when they are trained one after the other
+	final ForkJoinPool m_pool;
+
+	public RetrainEngine(
+			final String policy,
+			final int every,
+			final double timeBudget,
+			final boolean incremental,
+			final ForkJoinPool pool) {
+		m_policy      = policy;
+		m_every       = every;
+		m_timeBudget  = timeBudget;
+		m_incremental = incremental;
+		m_pool        = pool;
+	}
+
+	// Steps trained at the same time evaluating 'model' on 'nInstances' test instances
+	public int parallelism(final Classifier model, final int nInstances) {
+		final boolean update = m_incremental && model instanceof UpdateableClassifier;
+		return m_pool != null && !update && m_policy.equals("every") ? (nInstances + m_every - 1) / m_every : 1;
+	}
+
+	public Evaluation evaluate(
+			final Classifier model,
+			final Instances trainingSet,
+			final Instances testSet) throws Exception {
+		final boolean update = m_incremental && model instanceof UpdateableClassifier;
+		if (m_pool != null && !update && m_policy.equals("every")) {
+			return walkForward(model, trainingSet, testSet);
+		}
+		// Training set grows with the test set: it is evaluated on a copy
+		final Instances growingSet = new Instances(trainingSet);
+		final Evaluation eval = new Evaluation(growingSet);
+		final DriftDetector drift = m_policy.equals("drift") ? new DriftDetector() : null;
+		final int nInstances = testSet.numInstances();
+		long retrainTime = 0;
+		int  nAdded = 0;
+		boolean drifted = false;
+		for (int i = 0; i < nInstances; i++) {
+			final boolean retrain;
+			if (i == 0) {
+				retrain = true;
+			} else if (update) {
+				retrain = false;
+			} else {
+				switch (m_policy) {
+					case "time":
+						retrain = nAdded > 0 && retrainTime <= m_timeBudget * 1e9 * i / nInstances;
+						break;
+					case "drift":
+						retrain = drifted;
+						break;
+					default:
+						retrain = nAdded >= m_every;
+						break;
+				}
+			}
+			if (retrain) {
+				final long start = System.nanoTime();
+				model.buildClassifier(growingSet);
+				retrainTime += System.nanoTime() - start;
+				nAdded  = 0;
+				drifted = false;
+			}
+			final Instance in = testSet.instance(i);
+			final double prediction = eval.evaluateModelOnceAndRecordPrediction(model, in);
+			if (drift != null && !in.classIsMissing()) {
+				drifted = drift.add(prediction != in.classValue()) || drifted;
+			}
+			if (update) {
+				((UpdateableClassifier) model).updateClassifier(in);
+			} else {
+				growingSet.add(in);
+				nAdded++;
+			}
+		}
+		return eval;
+	}
+
+	private Evaluation walkForward(
+			final Classifier model,
+			final Instances trainingSet,
+			final Instances testSet) throws Exception {
+		// Training set followed by the test set: the training data of each step is a prefix
+		final Instances data = new Instances(trainingSet);
+		final int nInstances = testSet.numInstances();
+		for (int i = 0; i < nInstances; i++) {data.add(testSet.instance(i));}
+		final int[] rows = new int[data.numInstances()];
+		for (int i = 0; i < rows.length; i++) {rows[i] = i;}
+
+		final double[][] distributions = new double[nInstances][];
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final int nSteps = (nInstances + m_every - 1) / m_every;
+		m_pool.invoke(new Steps(model, data, rows, trainingSet.numInstances(), testSet, distributions, failure, 0, nSteps));
+		if (failure.get() != null) {throw failure.get();}
+
+		final Evaluation eval = new Evaluation(trainingSet);
+		for (int i = 0; i < nInstances; i++) {
+			eval.evaluateModelOnceAndRecordPrediction(distributions[i], testSet.instance(i));
+		}
+		return eval;
+	}
+
+	private class Steps extends RecursiveAction {
+		static final long serialVersionUID = 1L;
+
+		final Classifier m_model;
+		final Instances  m_data;
+		final int[]      m_rows;
+		final int        m_nTrain;
+		final Instances  m_testSet;
+		final double[][] m_distributions;
+		final AtomicReference<Exception> m_failure;
+		final int m_from;
+		final int m_to;
+
+		Steps(
+				final Classifier model,
+				final Instances data,
+				final int[] rows,
+				final int nTrain,
+				final Instances testSet,
+				final double[][] distributions,
+				final AtomicReference<Exception> failure,
+				final int from,
+				final int to) {
+			m_model         = model;
+			m_data          = data;
+			m_rows          = rows;
+			m_nTrain        = nTrain;
+			m_testSet       = testSet;
+			m_distributions = distributions;
+			m_failure       = failure;
+			m_from          = from;
+			m_to            = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > 1) {
+				final int middle = (m_from + m_to) >>> 1;
+				invokeAll(
+						new Steps(m_model, m_data, m_rows, m_nTrain, m_testSet, m_distributions, m_failure, m_from, middle),
+						new Steps(m_model, m_data, m_rows, m_nTrain, m_testSet, m_distributions, m_failure, middle, m_to));
+				return;
+			}
+			if (m_failure.get() != null) {return;}
+			try {
+				final int from = m_from * m_every;
+				final int to   = Math.min(from + m_every, m_testSet.numInstances());
+				// Built from its options rather than serialized, so that
+				// the copy doesn't carry the model already trained
+				final Classifier model = Classifier.forName(m_model.getClass().getName(), m_model.getOptions());
+				model.buildClassifier(new IndexedInstances(m_data, m_rows, 0, m_nTrain + from));
+				for (int i = from; i < to; i++) {
+					// Class is hidden from the model, as Evaluation does
+					final Instance in = m_testSet.instance(i);
+					final Instance classMissing = (Instance) in.copy();
+					classMissing.setDataset(in.dataset());
+					classMissing.setClassMissing();
+					m_distributions[i] = model.distributionForInstance(classMissing);
+				}
+			} catch (Exception e) {
+				m_failure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	// Drift detection method: the rate of errors 'p' after 'n' predictions has
+	// standard deviation 's' = sqrt(p (1 - p) / n). Drift is detected when
+	// p + s exceeds by 3 standard deviations the lowest p + s seen, once
+	// enough predictions are made. Counts start again after a drift.
+	static class DriftDetector {
+		static final int MIN_PREDICTIONS = 30;
+
+		int    m_n      = 0;
+		double m_errors = 0;
+		double m_minP   = Double.MAX_VALUE;
+		double m_minS   = Double.MAX_VALUE;
+
+		// Whether the prediction shows a drift
+		boolean add(final boolean error) {
+			m_n++;
+			if (error) {m_errors++;}
+			if (m_n < MIN_PREDICTIONS) {return false;}
+			final double p = m_errors / m_n;
+			final double s = Math.sqrt(p * (1 - p) / m_n);
+			if (p + s < m_minP + m_minS) {m_minP = p; m_minS = s;}
+			if (p + s > m_minP + 3 * m_minS) {
+				m_n = 0; m_errors = 0; m_minP = Double.MAX_VALUE; m_minS = Double.MAX_VALUE;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		final String policy;
+		switch (m_policy) {
+			case "time":  policy = "time " + m_timeBudget; break;
+			case "drift": policy = "drift"; break;
+			default:      policy = "every " + m_every; break;
+		}
+		return policy + (m_incremental ? " incremental" : "");
+	}
+}
@@ -3,19 +3,29 @@ package mining;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.PrintWriter;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import conf.Configuration;
 
+import utils.CostModel;
+import utils.DatasetCache;
+import utils.ResultCache;
+import utils.SubsetMeritCache;
+import utils.TaskJournal;
 import utils.Utils;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
-import weka.core.Instance;
 import weka.core.Instances;
 
 public class TestSetEvaluation {
@@ -30,9 +40,55 @@ public class TestSetEvaluation {
 	
 	final String m_baselineName;
 	final String m_baselineOptions;
+	
+	// Baseline's evaluations on the test set, memoized by dataset
+	final ConcurrentHashMap<String, FutureTask<Outcome>> m_baselineEvals = 
+			new ConcurrentHashMap<String, FutureTask<Outcome>>();
+	
+	// Evaluations by what they depend on: identical evaluations, such as the ones of
+	// numbers of features giving the same features, are computed once. With a 
+	// ResultCache they are kept there for next runs too.
+	final ConcurrentHashMap<String, FutureTask<Outcome>> m_evals = 
+			new ConcurrentHashMap<String, FutureTask<Outcome>>();
+	final ResultCache m_cache;
+	
+	// How models are brought up to date with the test instances, evaluating with retrain
+	final RetrainEngine m_retrain;
+	
+	// Training and test sets, read once for all the winners using them
+	final DatasetCache m_datasets = new DatasetCache();
+	// Rows and attributes of their files, by path and modification time
+	final Map<String, int[]> m_sizes = new HashMap<String, int[]>();
+	
+	// Predicted running times experiments are queued with
+	final CostEstimator m_costs;
+	
+	// What is used of an evaluation: its measures, and its statistics as written in results
+	static class Outcome implements Serializable {
+		static final long serialVersionUID = 1L;
+		
+		final double m_pctCorrect;
+		final double m_weightedPrecision;
+		final double m_weightedRecall;
+		final double m_weightedFMeasure;
+		final String m_stats;
+		
+		Outcome(final Evaluation eval, final String stats) {
+			m_pctCorrect        = eval.pctCorrect();
+			m_weightedPrecision = eval.weightedPrecision();
+			m_weightedRecall    = eval.weightedRecall();
+			m_weightedFMeasure  = eval.weightedFMeasure();
+			m_stats             = stats;
+		}
+	}
     
     public TestSetEvaluation(final Configuration conf, final ExecutorService threadExecutor) {
     	m_conf = conf;
+    	m_cache = m_conf.resultCache();
+    	m_costs = new CostEstimator(m_conf);
+    	m_retrain = new RetrainEngine(m_conf.m_retrainPolicy, m_conf.m_retrainEvery, 
+    			m_conf.m_retrainTimeBudget, m_conf.m_retrainIncremental, 
+    			m_conf.m_retrainParallel ? m_conf.runtime().pool() : null);
     	
     	final Classifier baselineClassifier = m_conf.m_baselineClassifier;
     	m_baselineName    = baselineClassifier.getClass().getName();
@@ -41,7 +97,7 @@ public class TestSetEvaluation {
     	if (threadExecutor != null) {
     		m_threadExecutor = threadExecutor;
     	} else {
-    		m_threadExecutor = Executors.newFixedThreadPool(m_conf.m_nThreads);
+    		m_threadExecutor = m_conf.newExecutor(m_conf.m_nThreadsTestSet);
     	}
     	
     	m_trainFolder = m_conf.crossValidationSelectedDatasetPath();
@@ -50,8 +106,8 @@ public class TestSetEvaluation {
     	final String[] resultsFolderTokens = {m_conf.m_baseFolder, m_conf.m_testSetFolder, m_conf.m_resultsFolder, ""};
 		m_resultsFolder = Utils.join(resultsFolderTokens, m_conf.m_fileSeparator);
 		
-		// Empty results folders
-		Utils.requireDir(m_resultsFolder);
+		// Empty results folders, unless resuming
+		Utils.requireDir(m_resultsFolder, !m_conf.m_resume);
     }
     
     public TestSetEvaluation(Configuration conf) {
@@ -81,29 +137,89 @@ public class TestSetEvaluation {
 //		Utils.saveInstances(Filter.useFilter(testSet, acl), File.createTempFile("Predictions", ".arff"));
 //	}
 	
-	private Evaluation evalOneOne(
+	private Outcome evalOneOne(
 			final Instances trainingSet, 
 			final Instances testSet, 
 			final Classifier model) throws Exception {
-		final Evaluation eval = new Evaluation(trainingSet);
-		final int nInstances = testSet.numInstances();
-		for (int i = 0; i < nInstances; i++) {
-			model.buildClassifier(trainingSet);
-			final Instance in = testSet.instance(i);
-			eval.evaluateModelOnceAndRecordPrediction(model, in);
-			trainingSet.add(in);
-		}
-		return eval;
+		final CostModel.Cost cost = m_costs.retrain(model, 
+				trainingSet.numInstances(), testSet.numInstances(), trainingSet.numAttributes() - 1);
+		return outcome("retrain " + m_retrain, trainingSet, testSet, model, cost, new Callable<Outcome>() {
+			public Outcome call() throws Exception {
+				final Evaluation eval = m_retrain.evaluate(model, trainingSet, testSet);
+				return new Outcome(eval, stats(eval, "\nRetrain\nResults\n======\n"));
+			}
+		});
 	}
 	
-	private Evaluation eval(
+	private Outcome eval(
 			final Instances trainingSet, 
 			final Instances testSet, 
 			final Classifier model) throws Exception {
-		final Evaluation eval = new Evaluation(trainingSet);
-		model.buildClassifier(trainingSet);
-		eval.evaluateModel(model, testSet);
-		return eval;
+		final CostModel.Cost cost = m_costs.noRetrain(model, trainingSet.numInstances(), trainingSet.numAttributes() - 1);
+		return outcome("no-retrain", trainingSet, testSet, model, cost, new Callable<Outcome>() {
+			public Outcome call() throws Exception {
+				final Evaluation eval = new Evaluation(trainingSet);
+				model.buildClassifier(trainingSet);
+				eval.evaluateModel(model, testSet);
+				return new Outcome(eval, stats(eval, "\nNo retrain\nResults\n======\n"));
+			}
+		});
+	}
+	
+	// Evaluation computed by the first caller, the others with the same datasets and
+	// model share it. Evaluations of previous runs are taken from the cache,
+	// the others are timed for the predictions of their cost.
+	private Outcome outcome(
+			final String kind,
+			final Instances trainingSet, 
+			final Instances testSet, 
+			final Classifier model, 
+			final CostModel.Cost cost,
+			final Callable<Outcome> evaluation) throws Exception {
+		final String key = TaskJournal.key("test-set-evaluation", kind, 
+				Long.toHexString(SubsetMeritCache.fingerprint(trainingSet)), 
+				Long.toHexString(SubsetMeritCache.fingerprint(testSet)), TaskJournal.spec(model));
+		FutureTask<Outcome> eval = m_evals.get(key);
+		if (eval == null) {
+			final FutureTask<Outcome> newEval = new FutureTask<Outcome>(new Callable<Outcome>() {
+				public Outcome call() throws Exception {
+					Outcome outcome = m_cache == null ? null : (Outcome) m_cache.get(key);
+					if (outcome == null) {
+						final long start = System.nanoTime();
+						outcome = evaluation.call();
+						cost.record(System.nanoTime() - start);
+						if (m_cache != null) {m_cache.put(key, outcome);}
+					}
+					return outcome;
+				}
+			});
+			eval = m_evals.putIfAbsent(key, newEval);
+			if (eval == null) {eval = newEval;}
+		}
+		eval.run();
+		return eval.get();
+	}
+	
+	// Baseline is evaluated only once per dataset and shared by every winner, unless 
+	// it depends on the features: in this case it is evaluated once per feature set.
+	private Outcome baselineEval(
+			final String featureSelectionSpec,
+			final String featureSet,
+			final Instances trainingSet, 
+			final Instances testSet) throws Exception {
+		final String key = m_conf.baselineIgnoresFeatures() ? featureSet : featureSelectionSpec;
+		FutureTask<Outcome> eval = m_baselineEvals.get(key);
+		if (eval == null) {
+			final FutureTask<Outcome> newEval = new FutureTask<Outcome>(new Callable<Outcome>() {
+				public Outcome call() throws Exception {
+					return eval(trainingSet, testSet, Classifier.makeCopy(m_conf.m_baselineClassifier));
+				}
+			});
+			eval = m_baselineEvals.putIfAbsent(key, newEval);
+			if (eval == null) {eval = newEval;}
+		}
+		eval.run();
+		return eval.get();
 	}
 	
 	private Void exp(
@@ -114,66 +230,83 @@ public class TestSetEvaluation {
 			final double CVPerformance, 
 			final double CVStdDev,
 			final double CVBaselinePerformance,
-			final double CVBaselineStdDev) throws Exception {
-		// Filter for every dataset file for this competition and number of features
-		final String regexp = "^" + competition + ".*features" + nFeatures + ".arff$";
-		final FilenameFilter fileFilter = Utils.getFileFilter(regexp);
-		
+			final double CVBaselineStdDev,
+			final File[] rankingFiles,
+			final DatasetCache.Lease[] trainingSets,
+			final DatasetCache.Lease[] testSets) throws Exception {
+		final TaskJournal journal = m_conf.journal();
+		// Setting forName consumes options
+		final String optionsSpec = Utils.join(modelOptions, " ");
 		// Create instance of classfier from its specs
 		final Classifier model = (Classifier) weka.core.Utils.forName(Classifier.class, modelName, modelOptions);
 		// Output file name suffix
 		final String outFileNameSuffix = "-Prediction-" + modelName + ".txt";
-		// Get datasets folder...
-		final File dir = new File(m_trainFolder);
-		// ...then run experiment for every file of this competition and features (currently this will be only one file)
-		for (final File trainFile : dir.listFiles(fileFilter)) {
+		// Run experiment for every ranking of this competition (currently this will be only one file)
+		for (int r = 0; r < rankingFiles.length; r++) {
+			final File rankingFile = rankingFiles[r];
+			final String featureSet = Utils.stripExtension(rankingFile.getName());
+			final File trainFile = trainFile(rankingFile);
 			final String trainFileName = trainFile.getPath();
-			final String testFileName  = trainFileName.replace(m_trainFolder, m_testFolder);
-									
-			// Read training set
-			Instances trainingSet = Utils.readFile(trainFile);
+			final String testFileName  = testFile(trainFile).getPath();
+			final List<String> ranking = Utils.readRanking(rankingFile);
+			final int nRankedFeatures  = Integer.parseInt(nFeatures);
+			final String featureSelectionSpec = featureSet + "_features" + nFeatures;
+			final String outFileName = m_resultsFolder + m_conf.m_fileSeparator + featureSelectionSpec + outFileNameSuffix;
+			
+			// Evaluation is identified in the journal by its datasets, ranking, model and 
+			// cross validation results. Its output is the file written, if any.
+			final String key = TaskJournal.key("test-set", featureSelectionSpec, modelName, optionsSpec, 
+					CVPerformance, CVStdDev, CVBaselinePerformance, CVBaselineStdDev, 
+					m_baselineName, m_baselineOptions, m_conf.m_evaluationMeasure, m_retrain, TaskJournal.fingerprint(rankingFile), 
+					TaskJournal.fingerprint(trainFile), TaskJournal.fingerprint(new File(testFileName)));
+			if (journal.isDone(key, new File(outFileName))) {continue;}
+			
+			// Training set, keeping the best features only
+			Instances trainingSet = Utils.projectFeatures(
+					trainingSets[r].get(), ranking, nRankedFeatures, featureSelectionSpec);
 			final int nTrainInstances = trainingSet.numInstances();
 			
-			// Read test set
-			Instances testSet = Utils.readFile(testFileName);
+			// Test set, keeping the best features only
+			Instances testSet = Utils.projectFeatures(
+					testSets[r].get(), ranking, nRankedFeatures, featureSelectionSpec);
 			final int nTestInstances = testSet.numInstances();
 			
 			// Note: - datasets are already ordered by sort-attribute-name
 			//       - datasets have already been deprived from sorting attributes 
 			
 			// 3 avaluators for baseline, model with retrain, model without retrain
-			final Evaluation baselineEval     = eval(trainingSet, testSet, Classifier.makeCopy(m_conf.m_baselineClassifier));
-			final Evaluation noRetrainEval = eval(trainingSet, testSet, model);
-			final Evaluation retrainEval   = evalOneOne(trainingSet, testSet, model);
+			final Outcome baselineEval  = baselineEval(featureSelectionSpec, featureSet, trainingSet, testSet);
+			final Outcome noRetrainEval = eval(trainingSet, testSet, model);
+			final Outcome retrainEval   = evalOneOne(trainingSet, testSet, model);
 			
 			final double baselinePerformance;
 			final double noRetrainPerformance;
 			final double retrainPerformance;
 		    switch (m_conf.m_evaluationMeasure) {
 		    	case "accuracy":  
-					baselinePerformance = baselineEval.pctCorrect();
-					noRetrainPerformance = noRetrainEval.pctCorrect();
-					retrainPerformance = retrainEval.pctCorrect();
+					baselinePerformance = baselineEval.m_pctCorrect;
+					noRetrainPerformance = noRetrainEval.m_pctCorrect;
+					retrainPerformance = retrainEval.m_pctCorrect;
 		    		break;
 		    	case "precision":  
-					baselinePerformance = baselineEval.weightedPrecision();
-					noRetrainPerformance = noRetrainEval.weightedPrecision();
-					retrainPerformance = retrainEval.weightedPrecision();
+					baselinePerformance = baselineEval.m_weightedPrecision;
+					noRetrainPerformance = noRetrainEval.m_weightedPrecision;
+					retrainPerformance = retrainEval.m_weightedPrecision;
 		    		break;
 		    	case "recall":  
-					baselinePerformance = baselineEval.weightedRecall();
-					noRetrainPerformance = noRetrainEval.weightedRecall();
-					retrainPerformance = retrainEval.weightedRecall();
+					baselinePerformance = baselineEval.m_weightedRecall;
+					noRetrainPerformance = noRetrainEval.m_weightedRecall;
+					retrainPerformance = retrainEval.m_weightedRecall;
 		    		break;
 		    	case "f-measure":  
-					baselinePerformance = baselineEval.weightedFMeasure();
-					noRetrainPerformance = noRetrainEval.weightedFMeasure();
-					retrainPerformance = retrainEval.weightedFMeasure();
+					baselinePerformance = baselineEval.m_weightedFMeasure;
+					noRetrainPerformance = noRetrainEval.m_weightedFMeasure;
+					retrainPerformance = retrainEval.m_weightedFMeasure;
 		    		break;
 		    	default :  
-					baselinePerformance = baselineEval.pctCorrect();
-					noRetrainPerformance = noRetrainEval.pctCorrect();
-					retrainPerformance = retrainEval.pctCorrect();
+					baselinePerformance = baselineEval.m_pctCorrect;
+					noRetrainPerformance = noRetrainEval.m_pctCorrect;
+					retrainPerformance = retrainEval.m_pctCorrect;
 	    			System.out.println("WARNING Unrecognized evaluation mesure. Using Accuracy as default.");
 		    		break;
 		    }
@@ -189,8 +322,6 @@ public class TestSetEvaluation {
 			// We are only keeping results that outperform baseline significantly somehow
 			if (noRetrainOutperformsBaseline || retrainOutperformsBaseline) {
 				// Get output file writer
-				final String featureSelectionSpec = trainFile.getName().replaceAll(".arff$", "");
-				final String outFileName = m_resultsFolder + m_conf.m_fileSeparator + featureSelectionSpec + outFileNameSuffix;
 				final PrintWriter writer = new PrintWriter(outFileName, "UTF-8");
 				
 				writer.println("#################################");
@@ -228,53 +359,135 @@ public class TestSetEvaluation {
 				writer.println("## Without Retrain   : " + noRetrainPerformance);
 				writer.println("###############################");
 				
-				writer.println(stats(noRetrainEval, "\nNo retrain\nResults\n======\n"));
-				writer.println(stats(retrainEval,   "\nRetrain\nResults\n======\n"));
+				writer.println(noRetrainEval.m_stats);
+				writer.println(retrainEval.m_stats);
 				
 				writer.close();
+			} else {
+				// Left by an evaluation of a previous run which did
+				new File(outFileName).delete();
 			}
+			journal.record(key, new File(outFileName));
 		}
 		return null;
 	}
 	
-	private Future<Void> submitExp(
-			final String competition, 
-			final String nFeatures, 
-			final String modelName,
-			final String[] modelOptions,
-			final double CVPerformance, 
-			final double CVStdDev,
-			final double CVBaselinePerformance,
-			final double CVBaselineStdDev) throws Exception {		
-		// Queue experiment in the executor
-		return m_threadExecutor.submit(new Callable<Void>() {
-			public Void call() throws Exception {
-				return exp(competition, nFeatures, modelName, modelOptions, CVPerformance, CVStdDev, CVBaselinePerformance, CVBaselineStdDev);
-		    }
-		});
+	// Every feature selection ranking for this competition
+	private File[] rankingFiles(final String competition) {
+		final String regexp = "^" + competition + ".*" + Utils.RANKING_EXTENSION + "$";
+		final FilenameFilter fileFilter = Utils.getFileFilter(regexp);
+		return new File(m_trainFolder).listFiles(fileFilter);
+	}
+	
+	private File trainFile(final File rankingFile) {
+		return new File(m_trainFolder + Utils.stripExtension(rankingFile.getName()) + m_conf.datasetExtension());
 	}
 	
+	private File testFile(final File trainFile) {
+		return new File(trainFile.getPath().replace(m_trainFolder, m_testFolder));
+	}
+	
+	// Rows and attributes of a dataset file, memoized: winners share the files of
+	// their competition. Files are told apart as in DatasetCache.
+	private synchronized int[] datasetSize(final File f) throws Exception {
+		final String key = f.getPath() + "@" + f.lastModified();
+		int[] size = m_sizes.get(key);
+		if (size == null) {
+			size = Utils.datasetSize(f);
+			m_sizes.put(key, size);
+		}
+		return size;
+	}
+	
+	// Experiment of a winner, queued with its predicted running time, from the
+	// sizes of its dataset files, taking the cores of the steps its retrain
+	// trains at the same time
+	private class Winner {
+		final String   m_competition;
+		final String   m_nFeatures;
+		final String   m_modelName;
+		final String[] m_modelOptions;
+		final double   m_CVPerformance;
+		final double   m_CVStdDev;
+		final double   m_CVBaselinePerformance;
+		final double   m_CVBaselineStdDev;
+		final File[]   m_rankingFiles;
+		double m_seconds     = 0;
+		int    m_parallelism = 1;
+		
+		Winner(final String[] setting) throws Exception {
+			m_competition   = setting[0];
+			m_nFeatures     = setting[1];
+			m_modelName     = setting[2];
+			m_modelOptions  = weka.core.Utils.splitOptions(setting[3]);
+			m_CVPerformance = Double.parseDouble(setting[4]);
+			m_CVStdDev      = Double.parseDouble(setting[5]);
+			m_CVBaselinePerformance = Double.parseDouble(setting[6]);
+			m_CVBaselineStdDev      = Double.parseDouble(setting[7]);
+			m_rankingFiles  = rankingFiles(m_competition);
+			final Classifier model = Classifier.forName(m_modelName, m_modelOptions.clone());
+			for (final File rankingFile : m_rankingFiles) {
+				final File trainFile = trainFile(rankingFile);
+				final int[] trainSize = datasetSize(trainFile);
+				final int[] testSize  = datasetSize(testFile(trainFile));
+				final int nRanked = Math.min(Integer.parseInt(m_nFeatures), trainSize[1] - 1);
+				m_seconds += m_costs.noRetrain(model, trainSize[0], nRanked).seconds() 
+						+ m_costs.retrain(model, trainSize[0], testSize[0], nRanked).seconds();
+				m_parallelism = Math.max(m_parallelism, m_retrain.parallelism(model, testSize[0]));
+			}
+		}
+		
+		// Experiment retaining the datasets it reads, released once it is done
+		Callable<Void> experiment() {
+			final int nRankings = m_rankingFiles.length;
+			final DatasetCache.Lease[] trainingSets = new DatasetCache.Lease[nRankings];
+			final DatasetCache.Lease[] testSets     = new DatasetCache.Lease[nRankings];
+			for (int r = 0; r < nRankings; r++) {
+				final File trainFile = trainFile(m_rankingFiles[r]);
+				trainingSets[r] = m_datasets.retain(trainFile);
+				testSets[r]     = m_datasets.retain(testFile(trainFile));
+			}
+			return m_conf.runtime().task(m_seconds, m_parallelism, new Callable<Void>() {
+				public Void call() throws Exception {
+					try {
+						return exp(m_competition, m_nFeatures, m_modelName, m_modelOptions, m_CVPerformance, m_CVStdDev, 
+								m_CVBaselinePerformance, m_CVBaselineStdDev, m_rankingFiles, trainingSets, testSets);
+					} finally {
+						for (int r = 0; r < nRankings; r++) {
+							trainingSets[r].release();
+							testSets[r].release();
+						}
+					}
+			    }
+			});
+		}
+	}
+	
+	// Every winner is sized before any dataset is retained, so that a failure
+	// leaks no lease. Datasets of all the winners are then retained before any
+	// of them runs, so that winners sharing them read them only once.
 	public List<Future<Void>> experiment(final List<String[]> settings) throws Exception {
+		final List<Winner> winners = new ArrayList<Winner>(settings.size());
+		for (final String[] setting : settings) {winners.add(new Winner(setting));}
+		final List<Callable<Void>> experiments = new ArrayList<Callable<Void>>(winners.size());
+		for (final Winner winner : winners) {experiments.add(winner.experiment());}
+		// Queue experiments in the executor
 		final List<Future<Void>> queue = new ArrayList<Future<Void>>();
-		for (final String[] setting : settings) {
-			final String competition   = setting[0];
-			final String nFeatures     = setting[1];
-			final String modelName     = setting[2];
-			final String[] options     = weka.core.Utils.splitOptions(setting[3]);
-			final double CVPerformance = Double.parseDouble(setting[4]);
-			final double CVStdDev      = Double.parseDouble(setting[5]);
-			final double CVBaselinePerformance = Double.parseDouble(setting[6]);
-			final double CVBaselineStdDev      = Double.parseDouble(setting[7]);
-			queue.add(submitExp(competition, nFeatures, modelName, options, CVPerformance, CVStdDev, CVBaselinePerformance, CVBaselineStdDev));
-		}
+		for (final Callable<Void> experiment : experiments) {queue.add(m_threadExecutor.submit(experiment));}
 		return queue;
 	}
 	
-	public void incrementalExperiment(final List<Future<List<String[]>>> results) throws Exception {
+	// Winners of every CV experiment are queued on the test set as soon as that
+	// experiment completes, whatever the order the experiments were queued in
+	public void incrementalExperiment(final CrossValidationEvaluation cv) throws Exception {
+		final BlockingQueue<Future<List<String[]>>> completed = new LinkedBlockingQueue<Future<List<String[]>>>();
+		final int nExperiments = cv.experiment(completed).size();
 		final List<Future<Void>> queue = new ArrayList<Future<Void>>();
-		for (final Future<List<String[]>> r : results) {
-			final List<String[]> settings = r.get();
+		for (int e = 1; e <= nExperiments; e++) {
+			final List<String[]> settings = completed.take().get();
 			queue.addAll(experiment(settings));
+			System.out.println("Cross validation experiment " + e + " of " + nExperiments + " done: " + 
+					settings.size() + " winners queued on the test set, " + queue.size() + " so far");
 		}; for (final Future<Void> done : queue) {done.get();}
 	}
 				
@@ -285,9 +498,8 @@ public class TestSetEvaluation {
 	public static void main(final String[] args) throws Exception {
 		final Configuration conf = new Configuration();
 		final CrossValidationEvaluation cv = new CrossValidationEvaluation(conf);
-		final ExecutorService threadExecutor = cv.m_threadExecutor;
-		// We always pass the same executor object to all the phases, so it will queue everything together 
-		final TestSetEvaluation pe = new TestSetEvaluation(conf, threadExecutor);
+		// Each phase has its executor, within the cores of the runtime they share
+		final TestSetEvaluation pe = new TestSetEvaluation(conf, null);
 		// See if we already have CV results...
 		try {
 			final List<String[]> winners = cv.getWinners();
@@ -296,8 +508,9 @@ public class TestSetEvaluation {
 		}
 		// ...or get them by executing the experiment.
 		catch (Exception e) {
-			pe.incrementalExperiment(cv.experiment());
+			pe.incrementalExperiment(cv);
 		}
-		threadExecutor.shutdown();
+		cv.m_threadExecutor.shutdown();
+		pe.m_threadExecutor.shutdown();
 	}
 }
@@ -0,0 +1,125 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+// Writes a dataset in ARFF format one instance at a time, so the text of the
+// whole dataset is never held in memory. Output is the same Instances.toString
+// would produce. Files whose name ends with ".gz" are compressed with gzip.
+public class ArffWriter implements DatasetWriter {
+
+	final Instances m_header;
+	final Writer    m_writer;
+
+	// Per attribute: its type and, for nominal ones, its quoted labels
+	final int[]        m_types;
+	final String[][]   m_labels;
+
+	// Buffer reused to format every number
+	final char[] m_digits = new char[32];
+
+	boolean m_firstRow = true;
+
+	public ArffWriter(final Instances header, final File outFile) throws IOException {
+		m_header = new Instances(header, 0);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile), 1 << 16);
+		if (outFile.getName().endsWith(".gz")) {out = new GZIPOutputStream(out, 1 << 16);}
+		m_writer = new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+
+		final int nAttributes = m_header.numAttributes();
+		m_types  = new int[nAttributes];
+		m_labels = new String[nAttributes][];
+		for (int i = 0; i < nAttributes; i++) {
+			final Attribute attribute = m_header.attribute(i);
+			m_types[i] = attribute.type();
+			if (attribute.isNominal()) {
+				m_labels[i] = new String[attribute.numValues()];
+				for (int v = 0; v < m_labels[i].length; v++) {
+					m_labels[i][v] = weka.core.Utils.quote(attribute.value(v));
+				}
+			}
+		}
+		m_writer.write(m_header.toString());
+	}
+
+	public void write(final Instance in) throws IOException {
+		if (in instanceof SparseInstance || in.weight() != 1.0) {
+			// Rare formats are left to Weka
+			newRow(); m_writer.write(in.toString());
+			return;
+		}
+		final int nAttributes = m_types.length;
+		newRow();
+		for (int i = 0; i < nAttributes; i++) {
+			if (i > 0) {m_writer.write(',');}
+			final double value = in.value(i);
+			if (Instance.isMissingValue(value)) {
+				m_writer.write('?');
+			} else if (m_types[i] == Attribute.NUMERIC) {
+				writeNumber(value);
+			} else if (m_types[i] == Attribute.NOMINAL) {
+				m_writer.write(m_labels[i][(int) value]);
+			} else {
+				m_writer.write(in.toString(i));
+			}
+		}
+	}
+
+	// Rows of a dataset with the same header
+	public void accept(final double[] values, final double weight) throws IOException {
+		final Instance in = new Instance(weight, values);
+		in.setDataset(m_header);
+		write(in);
+	}
+
+	public void close() throws IOException {
+		m_writer.flush(); m_writer.close();
+	}
+
+	// As in Instances.toString, rows are separated but not terminated by newlines
+	private void newRow() throws IOException {
+		if (!m_firstRow) {m_writer.write('\n');}
+		m_firstRow = false;
+	}
+
+	// Same text as Utils.doubleToString(value, 6), without allocating strings
+	private void writeNumber(final double value) throws IOException {
+		final double temp = value * 1000000.0;
+		if (!(Math.abs(temp) < Long.MAX_VALUE)) {
+			m_writer.write("" + value);
+			return;
+		}
+		final long precisionValue = (temp > 0) ? (long) (temp + 0.5) : -(long) (Math.abs(temp) + 0.5);
+		if (precisionValue == 0) {m_writer.write('0'); return;}
+
+		// Digits of the absolute value, from the least significant
+		long abs = Math.abs(precisionValue);
+		int nDigits = 0;
+		while (abs > 0 || nDigits < 7) {
+			m_digits[nDigits++] = (char) ('0' + abs % 10);
+			abs /= 10;
+		}
+		// Trailing zeros of the decimal part are dropped
+		int last = 0;
+		while (last < 6 && m_digits[last] == '0') {last++;}
+
+		if (precisionValue < 0) {m_writer.write('-');}
+		for (int i = nDigits - 1; i >= 6; i--) {m_writer.write(m_digits[i]);}
+		if (last < 6) {
+			m_writer.write('.');
+			for (int i = 5; i >= last; i--) {m_writer.write(m_digits[i]);}
+		}
+	}
+}
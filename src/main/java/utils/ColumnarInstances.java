@@ -0,0 +1,309 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+// Dataset stored in a compact binary columnar format, used to hand datasets
+// from one phase of the analysis to the next without formatting and parsing text.
+// Layout of a file:
+// - magic bytes and the length of the header
+// - header: relation name and attributes with their type and, for nominal
+//   and string attributes, their dictionary of values
+// - groups of rows, each one made of its number of rows, a flag telling if
+//   weights are stored and one column per attribute: doubles for numeric and
+//   date attributes, indexes in the dictionary for nominal and string ones
+//   (-1 when missing), then weights as a double column when some is not 1
+// - an empty group marking the end of the file
+// Rows are written in groups, so a dataset can be written one row at a time,
+// and columns are read through memory-mapped I/O, mapping each group once.
+public class ColumnarInstances extends Instances {
+
+	static final long serialVersionUID = 1L;
+
+	public static final String EXTENSION = ".bin";
+
+	private static final byte[] MAGIC = {'S', 'T', 'A', 'R', 'C', 'O', 'L', 1};
+	private static final int GROUP_SIZE = 4096;
+
+	// A file is columnar if it starts with the magic bytes, whatever its name
+	public static boolean isColumnar(final File f) throws IOException {
+		final byte[] magic = new byte[MAGIC.length];
+		final FileInputStream in = new FileInputStream(f);
+		try {
+			int read = 0;
+			while (read < magic.length) {
+				final int n = in.read(magic, read, magic.length - read);
+				if (n < 0) {return false;}
+				read += n;
+			}
+		} finally {in.close();}
+		return Arrays.equals(magic, MAGIC);
+	}
+
+	// Datasets with relational attributes can't be stored in this format
+	public static boolean canWrite(final Instances data) {
+		return !data.checkForAttributeType(Attribute.RELATIONAL);
+	}
+
+	private static boolean isIndexed(final Attribute attribute) {
+		return attribute.isNominal() || attribute.isString();
+	}
+
+	public static void write(final Instances data, final File outFile) throws IOException {
+		final Writer writer = new Writer(data, outFile);
+		try {
+			final int nInstances = data.numInstances();
+			for (int i = 0; i < nInstances; i++) {writer.write(data.instance(i));}
+		} finally {writer.close();}
+	}
+
+	// Writes a dataset one row at a time, keeping at most a group of rows in memory.
+	// String values must already be in the dictionary of the header.
+	public static class Writer implements DatasetWriter {
+		final Instances        m_header;
+		final DataOutputStream m_out;
+
+		final double[][] m_rows    = new double[GROUP_SIZE][];
+		final double[]   m_weights = new double[GROUP_SIZE];
+		int m_nRows = 0;
+
+		public Writer(final Instances header, final File outFile) throws IOException {
+			m_header = header;
+			final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(headerBytes);
+			final int nAttributes = header.numAttributes();
+			out.writeUTF(header.relationName());
+			out.writeInt(nAttributes);
+			for (int a = 0; a < nAttributes; a++) {
+				final Attribute attribute = header.attribute(a);
+				out.writeUTF(attribute.name());
+				out.writeByte(attribute.type());
+				switch (attribute.type()) {
+					case Attribute.NOMINAL:
+					case Attribute.STRING:
+						out.writeInt(attribute.numValues());
+						for (int v = 0; v < attribute.numValues(); v++) {out.writeUTF(attribute.value(v));}
+						break;
+					case Attribute.DATE:
+						out.writeUTF(attribute.getDateFormat());
+						break;
+					case Attribute.NUMERIC:
+						break;
+					default:
+						throw new IOException("Attribute " + attribute.name() + " can't be stored in columnar format.");
+				}
+			}
+			out.close();
+
+			m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), 1 << 16));
+			m_out.write(MAGIC);
+			m_out.writeInt(headerBytes.size());
+			headerBytes.writeTo(m_out);
+		}
+
+		public void write(final Instance in) throws IOException {
+			add(in.toDoubleArray(), in.weight());
+		}
+
+		// Rows of a dataset with the same header
+		public void accept(final double[] values, final double weight) throws IOException {
+			add(values, weight);
+		}
+
+		private void add(final double[] values, final double weight) throws IOException {
+			m_rows[m_nRows]    = values;
+			m_weights[m_nRows] = weight;
+			m_nRows++;
+			if (m_nRows == GROUP_SIZE) {flush();}
+		}
+
+		private void flush() throws IOException {
+			boolean weighted = false;
+			for (int r = 0; r < m_nRows && !weighted; r++) {weighted = m_weights[r] != 1.0;}
+			m_out.writeInt(m_nRows);
+			m_out.writeBoolean(weighted);
+			final int nAttributes = m_header.numAttributes();
+			for (int a = 0; a < nAttributes; a++) {
+				if (isIndexed(m_header.attribute(a))) {
+					for (int r = 0; r < m_nRows; r++) {
+						final double value = m_rows[r][a];
+						m_out.writeInt(Instance.isMissingValue(value) ? -1 : (int) value);
+					}
+				} else {
+					for (int r = 0; r < m_nRows; r++) {m_out.writeDouble(m_rows[r][a]);}
+				}
+			}
+			if (weighted) {
+				for (int r = 0; r < m_nRows; r++) {m_out.writeDouble(m_weights[r]);}
+			}
+			Arrays.fill(m_rows, 0, m_nRows, null);
+			m_nRows = 0;
+		}
+
+		public void close() throws IOException {
+			try {
+				if (m_nRows > 0) {flush();}
+				m_out.writeInt(0);
+			} finally {m_out.close();}
+		}
+	}
+
+	public static Instances read(final File inFile) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(inFile, "r");
+		try {
+			return new ColumnarInstances(file.getChannel());
+		} finally {file.close();}
+	}
+
+	// Rows and attributes of a dataset file, going through the groups of rows without reading them
+	public static int[] size(final File inFile) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(inFile, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final DataInputStream header = readHeader(channel);
+			header.readUTF();
+			final FastVector attributes = readAttributes(header);
+			int rowBytes = 0;
+			for (int a = 0; a < attributes.size(); a++) {rowBytes += isIndexed((Attribute) attributes.elementAt(a)) ? 4 : 8;}
+
+			int nRows = 0;
+			long offset = MAGIC.length + 4 + read(channel, MAGIC.length, 4).getInt();
+			while (true) {
+				final int groupRows = read(channel, offset, 4).getInt();
+				if (groupRows == 0) {break;}
+				final boolean weighted = read(channel, offset + 4, 1).get() != 0;
+				offset += 5 + groupRows * (long) rowBytes + (weighted ? groupRows * 8L : 0);
+				nRows += groupRows;
+			}
+			return new int[] {nRows, attributes.size()};
+		} finally {file.close();}
+	}
+
+	private ColumnarInstances(final FileChannel channel) throws IOException {
+		this(channel, readHeader(channel));
+	}
+
+	private ColumnarInstances(final FileChannel channel, final DataInputStream header) throws IOException {
+		super(header.readUTF(), readAttributes(header), 0);
+		final int nAttributes = numAttributes();
+
+		// Bytes taken by a row of the columns
+		int rowBytes = 0;
+		for (int a = 0; a < nAttributes; a++) {rowBytes += isIndexed(attribute(a)) ? 4 : 8;}
+
+		long offset = MAGIC.length + 4 + read(channel, MAGIC.length, 4).getInt();
+		double[] doubles = new double[0];
+		int[]    ints    = new int[0];
+		while (true) {
+			final int nRows = read(channel, offset, 4).getInt();
+			if (nRows == 0) {break;}
+			final boolean weighted = read(channel, offset + 4, 1).get() != 0;
+			offset += 5;
+			final long groupBytes = nRows * (long) rowBytes + (weighted ? nRows * 8L : 0);
+			final ByteBuffer group = map(channel, offset, groupBytes);
+			offset += groupBytes;
+			if (doubles.length < nRows) {doubles = new double[nRows]; ints = new int[nRows];}
+
+			// Rows are filled one column at a time
+			final double[][] rows = new double[nRows][nAttributes];
+			for (int a = 0; a < nAttributes; a++) {
+				if (isIndexed(attribute(a))) {
+					final IntBuffer column = group.asIntBuffer();
+					column.get(ints, 0, nRows);
+					for (int r = 0; r < nRows; r++) {rows[r][a] = ints[r] < 0 ? Instance.missingValue() : ints[r];}
+					group.position(group.position() + nRows * 4);
+				} else {
+					final DoubleBuffer column = group.asDoubleBuffer();
+					column.get(doubles, 0, nRows);
+					for (int r = 0; r < nRows; r++) {rows[r][a] = doubles[r];}
+					group.position(group.position() + nRows * 8);
+				}
+			}
+			if (weighted) {
+				group.asDoubleBuffer().get(doubles, 0, nRows);
+			} else {
+				Arrays.fill(doubles, 0, nRows, 1.0);
+			}
+
+			// Rows are added in place, Instances.add would copy each of them
+			for (int r = 0; r < nRows; r++) {
+				final Instance in = new Instance(doubles[r], rows[r]);
+				in.setDataset(this);
+				m_Instances.addElement(in);
+			}
+		}
+	}
+
+	private static ByteBuffer map(final FileChannel channel, final long offset, final long size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+	}
+
+	// Few bytes at the given offset, read rather than mapped
+	private static ByteBuffer read(final FileChannel channel, final long offset, final int size) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {throw new EOFException("Truncated columnar dataset file.");}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static DataInputStream readHeader(final FileChannel channel) throws IOException {
+		final ByteBuffer preamble = read(channel, 0, MAGIC.length + 4);
+		final byte[] magic = new byte[MAGIC.length];
+		preamble.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {throw new IOException("Not a columnar dataset file.");}
+		final byte[] header = new byte[preamble.getInt()];
+		read(channel, MAGIC.length + 4, header.length).get(header);
+		return new DataInputStream(new ByteArrayInputStream(header));
+	}
+
+	private static FastVector readAttributes(final DataInputStream header) throws IOException {
+		final int nAttributes = header.readInt();
+		final FastVector attributes = new FastVector(nAttributes);
+		for (int a = 0; a < nAttributes; a++) {
+			final String name = header.readUTF();
+			final int type = header.readByte();
+			switch (type) {
+				case Attribute.NOMINAL:
+					final int nValues = header.readInt();
+					final FastVector values = new FastVector(nValues);
+					for (int v = 0; v < nValues; v++) {values.addElement(header.readUTF());}
+					attributes.addElement(new Attribute(name, values));
+					break;
+				case Attribute.STRING:
+					final Attribute string = new Attribute(name, (FastVector) null);
+					final int nStrings = header.readInt();
+					for (int v = 0; v < nStrings; v++) {string.addStringValue(header.readUTF());}
+					attributes.addElement(string);
+					break;
+				case Attribute.DATE:
+					attributes.addElement(new Attribute(name, header.readUTF()));
+					break;
+				default:
+					attributes.addElement(new Attribute(name));
+					break;
+			}
+		}
+		return attributes;
+	}
+}
@@ -0,0 +1,159 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+// Predicted running time of tasks, learnt from the tasks timed before.
+// A task does some units of work, growing with the rows and features of its
+// data the way its scheme (classifier or evaluator) scales, and each unit
+// takes the seconds measured for the tasks of the same phase and scheme with
+// the same options, else with any options, else for any task of the phase.
+// Tasks of phases never timed take DEFAULT_RATE seconds per unit.
+// Times are kept in a file as lines "phase, class, scheme, work, seconds",
+// so that predictions of a run learn from the runs before it.
+public class CostModel {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Seconds per unit of work of tasks never timed
+	public static final double DEFAULT_RATE = 1e-7;
+
+	// Null when times are not kept across runs
+	final File m_file;
+	// Work done and seconds taken so far, by phase and scheme with its options,
+	// by phase and scheme class, and by phase
+	final Map<String, double[]> m_times      = new HashMap<String, double[]>();
+	final Map<String, double[]> m_classTimes = new HashMap<String, double[]>();
+	final Map<String, double[]> m_phaseTimes = new HashMap<String, double[]>();
+
+	// Times which can't be read are only a warning: predictions start from scratch
+	public CostModel(final File file) {
+		m_file = file;
+		if (file != null && file.isFile()) {
+			try {
+				load();
+			} catch (IOException e) {
+				System.out.println("Warning, couldn't read task times " + file + ": " + e);
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(m_file), UTF8));
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				final String[] fields = line.split("\t", -1);
+				if (fields.length == 5) {
+					try {
+						add(fields[0], fields[1], fields[2], Double.parseDouble(fields[3]), Double.parseDouble(fields[4]));
+					} catch (NumberFormatException e) {
+						System.out.println("Warning, ignoring malformed line of " + m_file + ": " + line);
+					}
+				}
+				line = reader.readLine();
+			}
+		} finally {reader.close();}
+	}
+
+	public synchronized void save() throws IOException {
+		if (m_file == null) {return;}
+		final File tmp = new File(m_file.getPath() + ".tmp");
+		final Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+		try {
+			for (final Map.Entry<String, double[]> entry : m_times.entrySet()) {
+				out.write(entry.getKey() + "\t" + entry.getValue()[0] + "\t" + entry.getValue()[1] + "\n");
+			}
+		} finally {out.close();}
+		if (m_file.exists()) {m_file.delete();}
+		if (!tmp.renameTo(m_file)) {throw new IOException("Couldn't save task times to " + m_file);}
+	}
+
+	private static void add(final Map<String, double[]> times, final String key, final double work, final double seconds) {
+		double[] time = times.get(key);
+		if (time == null) {
+			time = new double[2];
+			times.put(key, time);
+		}
+		time[0] += work;
+		time[1] += seconds;
+	}
+
+	private synchronized void add(
+			final String phase,
+			final String schemeClass,
+			final String scheme,
+			final double work,
+			final double seconds) {
+		add(m_times,      phase + "\t" + schemeClass + "\t" + scheme, work, seconds);
+		add(m_classTimes, phase + "\t" + schemeClass, work, seconds);
+		add(m_phaseTimes, phase, work, seconds);
+	}
+
+	// Units of work of running 'scheme' on 'rows' rows of 'features' features:
+	// lazy learners and support vector machines compare rows with each other,
+	// trees sort them, the others go through them a few times
+	public static double work(final Object scheme, final double rows, final double features) {
+		final String name = scheme.getClass().getName();
+		final double r = Math.max(rows, 1);
+		final double f = Math.max(features, 1);
+		if (name.startsWith("weka.classifiers.lazy.") || name.startsWith("weka.classifiers.functions.SMO")) {
+			return r * r * f;
+		}
+		if (name.startsWith("weka.classifiers.trees.")) {
+			return r * Math.log(r + 1) / Math.log(2) * f;
+		}
+		return r * f;
+	}
+
+	// Cost of a task of a phase running a scheme
+	public class Cost {
+		final String m_phase;
+		final String m_schemeClass;
+		final String m_scheme;
+		final double m_work;
+
+		Cost(final String phase, final Object scheme, final double work) {
+			m_phase       = phase;
+			m_schemeClass = scheme.getClass().getName();
+			// Fields of the file are separated by tabs
+			m_scheme      = TaskJournal.spec(scheme).replaceAll("[\t\r\n]", " ");
+			m_work        = work;
+		}
+
+		// Predicted seconds
+		public double seconds() {
+			return rate(m_phase, m_schemeClass, m_scheme) * m_work;
+		}
+
+		// Time taken by the task, once it has run
+		public void record(final long nanos) {
+			add(m_phase, m_schemeClass, m_scheme, m_work, nanos / 1e9);
+		}
+	}
+
+	public Cost cost(final String phase, final Object scheme, final double work) {
+		return new Cost(phase, scheme, work);
+	}
+
+	private synchronized double rate(final String phase, final String schemeClass, final String scheme) {
+		double[] time = m_times.get(phase + "\t" + schemeClass + "\t" + scheme);
+		if (time == null) {time = m_classTimes.get(phase + "\t" + schemeClass);}
+		if (time == null) {time = m_phaseTimes.get(phase);}
+		return time == null || time[0] <= 0 ? DEFAULT_RATE : time[1] / time[0];
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Task times: " + m_times.size() + " schemes timed" + (m_file != null ? ", kept in " + m_file : "");
+	}
+}
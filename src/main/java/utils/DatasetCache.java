@@ -0,0 +1,76 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import weka.core.Instances;
+
+// Datasets read from files shared by many tasks, loaded once. Tasks first
+// retain the files they are going to read, getting a lease for each of them,
+// then get their datasets from the leases: the first task getting a dataset
+// reads it, the others wait for it. A dataset is dropped once the last lease
+// on it is released. Files are told apart by path and modification time, so
+// a file written again is read again.
+// As with views, datasets must be treated as read-only.
+public class DatasetCache {
+
+	private final Map<String, Entry> m_entries = new HashMap<String, Entry>();
+
+	private static class Entry {
+		final FutureTask<Instances> m_data;
+		int m_leases = 0;
+
+		Entry(final File f) {
+			m_data = new FutureTask<Instances>(new Callable<Instances>() {
+				public Instances call() throws Exception {
+					final Instances data = Utils.readFile(f);
+					if (data == null) {throw new IOException("Couldn't read dataset " + f);}
+					return data;
+				}
+			});
+		}
+	}
+
+	public class Lease {
+		final String m_key;
+		final Entry  m_entry;
+
+		Lease(final String key, final Entry entry) {
+			m_key   = key;
+			m_entry = entry;
+		}
+
+		public Instances get() throws Exception {
+			m_entry.m_data.run();
+			try {
+				return m_entry.m_data.get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+
+		public void release() {
+			DatasetCache.this.release(this);
+		}
+	}
+
+	public synchronized Lease retain(final File f) {
+		final String key = f.getPath() + "@" + f.lastModified();
+		Entry entry = m_entries.get(key);
+		if (entry == null) {
+			entry = new Entry(f);
+			m_entries.put(key, entry);
+		}
+		entry.m_leases++;
+		return new Lease(key, entry);
+	}
+
+	synchronized void release(final Lease lease) {
+		if (--lease.m_entry.m_leases == 0) {m_entries.remove(lease.m_key);}
+	}
+}
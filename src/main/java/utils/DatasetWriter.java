@@ -0,0 +1,12 @@
+package utils;
+
+import java.io.IOException;
+
+import weka.core.Instance;
+
+// Writes the rows of a dataset to a file one at a time, in any of the
+// formats datasets can be stored in. See Utils.datasetWriter.
+public interface DatasetWriter extends ExternalSorter.RowSink {
+	void write(final Instance in) throws IOException;
+	void close() throws IOException;
+}
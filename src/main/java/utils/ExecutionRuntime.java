@@ -0,0 +1,88 @@
+package utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+// Threads of the whole analysis, within a budget of cores. Every phase queues
+// its tasks on an executor of its own, of as many threads as it is given, but
+// a task starts running only once it has taken its cores: the ones it declares
+// when it forks work of its own, else one. Forked work runs on a single
+// fork/join pool shared by every phase, with a worker per core, whose idle
+// workers steal it from the busy ones. So the cores declared by the tasks
+// forking work are left by the others, and the cores those tasks don't use
+// go to the tasks of the phases. Phases running at the same time share the
+// budget. A task reserves at most MAX_RESERVED_SHARE of the budget, whatever
+// it declares, so tasks forking work don't run one at a time nor hold back
+// the others: the rest of its forked work takes cores on demand, and the
+// machine is oversubscribed by that share at most.
+// Cores are handed out in the order tasks ask for them, so that tasks taking
+// many of them are not starved by the ones taking one. A task waiting on
+// another one must wait only on a task already running.
+public class ExecutionRuntime {
+
+	// Share of the budget a task reserves at most
+	public static final double MAX_RESERVED_SHARE = 0.5;
+
+	final int          m_budget;
+	final int          m_maxReserved;
+	final Semaphore    m_cores;
+	final ForkJoinPool m_pool;
+
+	public ExecutionRuntime(final int budget) {
+		m_budget = budget;
+		m_maxReserved = Math.max(1, (int) (budget * MAX_RESERVED_SHARE));
+		m_cores  = new Semaphore(budget, true);
+		m_pool   = new ForkJoinPool(budget);
+	}
+
+	public int budget() {
+		return m_budget;
+	}
+
+	// Pool the tasks fork their work on
+	public ForkJoinPool pool() {
+		return m_pool;
+	}
+
+	// Executor of a phase: the longest tasks first (see LongestFirstExecutor),
+	// or in the order they are queued
+	public ExecutorService newExecutor(final int nThreads, final boolean longestFirst) {
+		return longestFirst ? new LongestFirstExecutor(nThreads) : Executors.newFixedThreadPool(nThreads);
+	}
+
+	// Cores a task declaring 'parallelism' takes, one at least and
+	// 'm_maxReserved' at most
+	private int cores(final int parallelism) {
+		return Math.max(1, Math.min(parallelism, m_maxReserved));
+	}
+
+	// Task queued with the given priority, taking 'parallelism' cores while it runs
+	public Runnable task(final double priority, final int parallelism, final Runnable task) {
+		final int cores = cores(parallelism);
+		return LongestFirstExecutor.prioritized(priority, new Runnable() {
+			public void run() {
+				m_cores.acquireUninterruptibly(cores);
+				try {task.run();}
+				finally {m_cores.release(cores);}
+			}
+		});
+	}
+
+	public <V> Callable<V> task(final double priority, final int parallelism, final Callable<V> task) {
+		final int cores = cores(parallelism);
+		return LongestFirstExecutor.prioritized(priority, new Callable<V>() {
+			public V call() throws Exception {
+				m_cores.acquireUninterruptibly(cores);
+				try {return task.call();}
+				finally {m_cores.release(cores);}
+			}
+		});
+	}
+
+	public void shutdown() {
+		m_pool.shutdown();
+	}
+}
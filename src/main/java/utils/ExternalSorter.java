@@ -0,0 +1,168 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Sorts weighted rows of doubles by a double key using a bounded amount of memory.
+// Rows are kept in a buffer of fixed size: when it is full, the buffer is
+// sorted and spilled to a temporary file (a "run"). Sorted rows are then
+// obtained by merging all runs together.
+// Sort is stable: rows with the same key keep the order they were added in,
+// which Instances.sort (a quicksort) doesn't guarantee. As in Instances.sort,
+// rows with a missing (NaN) key are placed at the end.
+public class ExternalSorter {
+
+	// Receives the sorted rows
+	public interface RowSink {
+		void accept(final double[] values, final double weight) throws Exception;
+	}
+
+	final int m_nValues;
+	final int m_bufferSize;
+
+	final List<Row>  m_buffer;
+	final List<File> m_runs = new ArrayList<File>();
+	final List<Integer> m_runSizes = new ArrayList<Integer>();
+
+	private static class Row {
+		final double   m_key;
+		final double[] m_values;
+		final double   m_weight;
+
+		Row(final double key, final double[] values, final double weight) {
+			m_key    = key;
+			m_values = values;
+			m_weight = weight;
+		}
+	}
+
+	private final static Comparator<Row> ROW_COMPARATOR = new Comparator<Row>() {
+		@Override
+		public int compare(final Row r1, final Row r2) {
+			return compareKeys(r1.m_key, r2.m_key);
+		}
+	};
+
+	private static int compareKeys(final double key1, final double key2) {
+		final boolean missing1 = Double.isNaN(key1);
+		final boolean missing2 = Double.isNaN(key2);
+		if (missing1 || missing2) {
+			return missing1 == missing2 ? 0 : (missing1 ? 1 : -1);
+		}
+		return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+	}
+
+	public ExternalSorter(final int nValues, final int bufferSize) {
+		m_nValues    = nValues;
+		m_bufferSize = Math.max(bufferSize, 1);
+		m_buffer     = new ArrayList<Row>(Math.min(m_bufferSize, 1 << 16));
+	}
+
+	// Row array must not be modified by the caller after it has been added
+	public void add(final double key, final double[] values, final double weight) throws IOException {
+		assert(values.length == m_nValues);
+		m_buffer.add(new Row(key, values, weight));
+		if (m_buffer.size() >= m_bufferSize) {spill();}
+	}
+
+	private void spill() throws IOException {
+		final Row[] rows = m_buffer.toArray(new Row[0]);
+		m_buffer.clear();
+		// Arrays.sort on objects is stable
+		Arrays.sort(rows, ROW_COMPARATOR);
+
+		final File run = File.createTempFile("sortRun", ".bin");
+		run.deleteOnExit();
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		for (final Row row : rows) {
+			out.writeDouble(row.m_key);
+			for (final double value : row.m_values) {out.writeDouble(value);}
+			out.writeDouble(row.m_weight);
+		}
+		out.close();
+		m_runs.add(run);
+		m_runSizes.add(rows.length);
+	}
+
+	// Cursor on a sorted run being merged
+	private class RunReader {
+		final int m_run;
+		final DataInputStream m_in;
+		int m_left;
+
+		double   m_key;
+		double[] m_values;
+		double   m_weight;
+
+		RunReader(final int run) throws IOException {
+			m_run  = run;
+			m_in   = new DataInputStream(new BufferedInputStream(new FileInputStream(m_runs.get(run)), 1 << 16));
+			m_left = m_runSizes.get(run);
+		}
+
+		boolean next() throws IOException {
+			if (m_left == 0) {m_in.close(); return false;}
+			m_left--;
+			m_key = m_in.readDouble();
+			m_values = new double[m_nValues];
+			for (int i = 0; i < m_nValues; i++) {m_values[i] = m_in.readDouble();}
+			m_weight = m_in.readDouble();
+			return true;
+		}
+	}
+
+	// Sends every row to the sink in sorted order. Temporary files are removed.
+	public void writeTo(final RowSink sink) throws Exception {
+		try {
+			if (m_runs.size() == 0) {
+				// Everything fit in memory
+				final Row[] rows = m_buffer.toArray(new Row[0]);
+				m_buffer.clear();
+				Arrays.sort(rows, ROW_COMPARATOR);
+				for (final Row row : rows) {sink.accept(row.m_values, row.m_weight);}
+				return;
+			}
+			if (m_buffer.size() > 0) {spill();}
+
+			// Ties are resolved by run order, so merge is stable too
+			final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(m_runs.size(), new Comparator<RunReader>() {
+				@Override
+				public int compare(final RunReader r1, final RunReader r2) {
+					final int c = compareKeys(r1.m_key, r2.m_key);
+					return c != 0 ? c : r1.m_run - r2.m_run;
+				}
+			});
+			final int nRuns = m_runs.size();
+			for (int i = 0; i < nRuns; i++) {
+				final RunReader reader = new RunReader(i);
+				if (reader.next()) {queue.add(reader);}
+			}
+			while (!queue.isEmpty()) {
+				final RunReader reader = queue.poll();
+				sink.accept(reader.m_values, reader.m_weight);
+				if (reader.next()) {queue.add(reader);}
+			}
+		} finally {
+			close();
+		}
+	}
+
+	public void close() {
+		m_buffer.clear();
+		for (final File run : m_runs) {run.delete();}
+		m_runs.clear();
+		m_runSizes.clear();
+	}
+}
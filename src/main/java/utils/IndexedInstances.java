@@ -0,0 +1,42 @@
+package utils;
+
+import weka.core.FastVector;
+import weka.core.Instances;
+
+// View over a subset of the rows of a dataset. Instances are shared with the
+// source dataset instead of being copied, so the view must be treated as
+// read-only: Weka's classifiers and evaluators copy their data before
+// modifying it, so they can be safely fed with such a view.
+public class IndexedInstances extends Instances {
+
+	static final long serialVersionUID = 1L;
+
+	public IndexedInstances(
+			final Instances source,
+			final int[] rows,
+			final int from,
+			final int to) {
+		// Header is shared too, only the list of rows is new
+		super(source, 0);
+		m_Instances = new FastVector(to - from);
+		for (int i = from; i < to; i++) {
+			m_Instances.addElement(source.instance(rows[i]));
+		}
+	}
+
+	public IndexedInstances(
+			final Instances source,
+			final int[] rows) {
+		this(source, rows, 0, rows.length);
+	}
+
+	// Shallow copy: every row of the source, in a list of its own
+	public IndexedInstances(final Instances source) {
+		super(source, 0);
+		final int nInstances = source.numInstances();
+		m_Instances = new FastVector(nInstances);
+		for (int i = 0; i < nInstances; i++) {
+			m_Instances.addElement(source.instance(i));
+		}
+	}
+}
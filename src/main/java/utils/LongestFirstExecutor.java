@@ -0,0 +1,122 @@
+package utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed pool of threads running the queued tasks with the highest priority
+// first, instead of the oldest: given their predicted running time as
+// priority, the longest tasks start first and the short ones fill the gaps
+// at the end, rather than a long task queued last running alone. Tasks of
+// the same priority, and the ones without one (priority 0), run in the
+// order they are queued.
+public class LongestFirstExecutor extends ThreadPoolExecutor {
+
+	// Task telling its priority, which must not change while it is queued
+	public interface Prioritized {
+		double priority();
+	}
+
+	// Order tasks are queued in, breaking ties between priorities
+	final AtomicLong m_sequence = new AtomicLong();
+
+	public LongestFirstExecutor(final int nThreads) {
+		super(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	}
+
+	private static double priority(final Object task) {
+		return task instanceof Prioritized ? ((Prioritized) task).priority() : 0;
+	}
+
+	public static Runnable prioritized(final double priority, final Runnable task) {
+		return new PrioritizedRunnable(priority, task);
+	}
+
+	public static <V> Callable<V> prioritized(final double priority, final Callable<V> task) {
+		return new PrioritizedCallable<V>(priority, task);
+	}
+
+	private static class PrioritizedRunnable implements Runnable, Prioritized {
+		final double   m_priority;
+		final Runnable m_task;
+
+		PrioritizedRunnable(final double priority, final Runnable task) {
+			m_priority = priority;
+			m_task     = task;
+		}
+
+		public double priority() {return m_priority;}
+
+		public void run() {m_task.run();}
+	}
+
+	private static class PrioritizedCallable<V> implements Callable<V>, Prioritized {
+		final double      m_priority;
+		final Callable<V> m_task;
+
+		PrioritizedCallable(final double priority, final Callable<V> task) {
+			m_priority = priority;
+			m_task     = task;
+		}
+
+		public double priority() {return m_priority;}
+
+		public V call() throws Exception {return m_task.call();}
+	}
+
+	// Futures of the submitted tasks keep their priority
+	private static class PrioritizedFuture<V> extends FutureTask<V> implements Prioritized {
+		final double m_priority;
+
+		PrioritizedFuture(final Callable<V> task) {
+			super(task);
+			m_priority = LongestFirstExecutor.priority(task);
+		}
+
+		PrioritizedFuture(final Runnable task, final V value) {
+			super(task, value);
+			m_priority = LongestFirstExecutor.priority(task);
+		}
+
+		public double priority() {return m_priority;}
+	}
+
+	// What the queue holds: every task with its priority and its place in line
+	private static class Entry implements Runnable, Comparable<Entry> {
+		final Runnable m_task;
+		final double   m_priority;
+		final long     m_sequence;
+
+		Entry(final Runnable task, final long sequence) {
+			m_task     = task;
+			m_priority = priority(task);
+			m_sequence = sequence;
+		}
+
+		public void run() {m_task.run();}
+
+		public int compareTo(final Entry other) {
+			final int byPriority = Double.compare(other.m_priority, m_priority);
+			return byPriority != 0 ? byPriority : Long.compare(m_sequence, other.m_sequence);
+		}
+	}
+
+	@Override
+	protected <V> RunnableFuture<V> newTaskFor(final Callable<V> task) {
+		return new PrioritizedFuture<V>(task);
+	}
+
+	@Override
+	protected <V> RunnableFuture<V> newTaskFor(final Runnable task, final V value) {
+		return new PrioritizedFuture<V>(task, value);
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+		super.execute(new Entry(task, m_sequence.getAndIncrement()));
+	}
+}
@@ -0,0 +1,122 @@
+package utils;
+
+import weka.core.Instance;
+
+// Row of a ProjectedInstances: it shows some columns of a source row
+// without copying its values. Weka reads values through the accessors
+// overridden here, as it does for SparseInstance. The row is copied on
+// write: the first change copies its values into m_AttValues, from then
+// on the row is an ordinary Instance and the source row is left untouched.
+public class ProjectedInstance extends Instance {
+
+	static final long serialVersionUID = 1L;
+
+	final Instance m_source;
+	final int[]    m_columns;
+
+	public ProjectedInstance(final Instance source, final int[] columns) {
+		m_source    = source;
+		m_columns   = columns;
+		m_Weight    = source.weight();
+		m_AttValues = null;
+	}
+
+	// Values are read from the source row until the first write
+	boolean isCopied() {
+		return m_AttValues != null;
+	}
+
+	private void copyOnWrite() {
+		if (!isCopied()) {m_AttValues = toDoubleArray();}
+	}
+
+	@Override
+	public double value(final int attIndex) {
+		return isCopied() ? m_AttValues[attIndex] : m_source.value(m_columns[attIndex]);
+	}
+
+	@Override
+	public double valueSparse(final int indexOfIndex) {
+		return value(indexOfIndex);
+	}
+
+	@Override
+	public boolean isMissing(final int attIndex) {
+		return isMissingValue(value(attIndex));
+	}
+
+	@Override
+	public boolean isMissingSparse(final int indexOfIndex) {
+		return isMissing(indexOfIndex);
+	}
+
+	@Override
+	public int index(final int position) {
+		return position;
+	}
+
+	@Override
+	public int numAttributes() {
+		return isCopied() ? m_AttValues.length : m_columns.length;
+	}
+
+	@Override
+	public int numValues() {
+		return numAttributes();
+	}
+
+	@Override
+	public double[] toDoubleArray() {
+		if (isCopied()) {return super.toDoubleArray();}
+		final double[] values = new double[m_columns.length];
+		for (int i = 0; i < values.length; i++) {values[i] = value(i);}
+		return values;
+	}
+
+	@Override
+	public Object copy() {
+		final Instance copy = new Instance(weight(), toDoubleArray());
+		copy.setDataset(dataset());
+		return copy;
+	}
+
+	// Serialized as the ordinary row it stands for, not with the whole source row
+	private Object writeReplace() {
+		return copy();
+	}
+
+	@Override
+	public String toString() {
+		return copy().toString();
+	}
+
+	@Override
+	public void setValue(final int attIndex, final double value) {
+		copyOnWrite();
+		super.setValue(attIndex, value);
+	}
+
+	@Override
+	public void setValueSparse(final int indexOfIndex, final double value) {
+		copyOnWrite();
+		super.setValueSparse(indexOfIndex, value);
+	}
+
+	@Override
+	public void replaceMissingValues(final double[] array) {
+		copyOnWrite();
+		super.replaceMissingValues(array);
+	}
+
+	@Override
+	public void deleteAttributeAt(final int position) {
+		copyOnWrite();
+		super.deleteAttributeAt(position);
+	}
+
+	@Override
+	public void insertAttributeAt(final int position) {
+		copyOnWrite();
+		super.insertAttributeAt(position);
+	}
+}
@@ -0,0 +1,59 @@
+package utils;
+
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+// View over some of the columns of a dataset, in the given order. Rows are
+// ProjectedInstance objects reading the values of the source rows, so
+// no value is copied: many feature subsets of the same dataset can be
+// evaluated while the dataset is loaded only once.
+// Last column is the class. Rows are copied on write, so changing one
+// of them leaves the source dataset untouched.
+// A view over another view reads the rows of the first source, with the
+// columns of the two projections composed, so projecting again and again
+// never stacks indirections; rows already written are projected as they are.
+public class ProjectedInstances extends Instances {
+
+	static final long serialVersionUID = 1L;
+
+	final int[] m_columns;
+
+	public ProjectedInstances(
+			final Instances source,
+			final int[] columns,
+			final String relationName) {
+		super(relationName, attributes(source, columns), source.numInstances());
+		setClassIndex(columns.length - 1);
+		final boolean composed = source instanceof ProjectedInstances;
+		if (composed) {
+			final ProjectedInstances view = (ProjectedInstances) source;
+			m_columns = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {m_columns[i] = view.m_columns[columns[i]];}
+		} else {
+			m_columns = columns.clone();
+		}
+		final int[] ownColumns = columns.clone();
+		final int nInstances = source.numInstances();
+		for (int i = 0; i < nInstances; i++) {
+			// Rows of a view are read from their source row, unless they were
+			// written and hold values of their own
+			final Instance row = source.instance(i);
+			final Instance in = composed && row instanceof ProjectedInstance && !((ProjectedInstance) row).isCopied()
+					? new ProjectedInstance(((ProjectedInstance) row).m_source, m_columns)
+					: new ProjectedInstance(row, ownColumns);
+			// Rows are added in place, Instances.add would copy them
+			in.setDataset(this);
+			m_Instances.addElement(in);
+		}
+	}
+
+	private static FastVector attributes(final Instances source, final int[] columns) {
+		final FastVector attributes = new FastVector(columns.length);
+		for (final int column : columns) {
+			// Header gives attributes their position, so they must be copies
+			attributes.addElement(source.attribute(column).copy());
+		}
+		return attributes;
+	}
+}
@@ -0,0 +1,157 @@
+package utils;
+
+import java.util.Arrays;
+
+// Aggregates the rankings of a stage, added one at a time as they come.
+// Rankings are arrays of attribute index / merit from best to worst, as
+// Weka's rankers give. Methods:
+// - mean:         mean merit of each attribute
+// - borda:        sum of the attributes each one is ranked above
+// - rrf:          reciprocal rank fusion, sum of 1 / (k + position)
+// - median:       median merit, robust to a few outlying rankings
+// - trimmed_mean: mean merit without the given share of the lowest
+//                 and of the highest merits of each attribute
+// Sum based methods keep running sums only, robust ones the merits of
+// each attribute.
+public class RankAggregator {
+
+	public static final String[] METHODS = {"mean", "borda", "rrf", "median", "trimmed_mean"};
+
+	final String m_method;
+	// Constant 'k' of reciprocal rank fusion
+	final double m_rrfK;
+	// Share of merits trimmed at each end by trimmed mean
+	final double m_trim;
+
+	final double[]  m_sums;
+	final boolean[] m_ranked;
+	int m_nRankings = 0;
+
+	// Merits of each attribute, for robust methods
+	double[][] m_merits = null;
+
+	public RankAggregator(
+			final int nAttributes,
+			final String method,
+			final double rrfK,
+			final double trim) {
+		if (!Arrays.asList(METHODS).contains(method)) {
+			throw new IllegalArgumentException("Unrecognized rank aggregation " + method + ".");
+		}
+		m_method = method;
+		m_rrfK   = rrfK;
+		m_trim   = trim;
+		m_sums   = new double[nAttributes];
+		m_ranked = new boolean[nAttributes];
+		if (isRobust()) {m_merits = new double[nAttributes][8];}
+	}
+
+	private boolean isRobust() {
+		return m_method.equals("median") || m_method.equals("trimmed_mean");
+	}
+
+	public void add(final double[][] ranking) {
+		final int length = ranking.length;
+		for (int position = 0; position < length; position++) {
+			final int index = (int) ranking[position][0];
+			m_ranked[index] = true;
+			switch (m_method) {
+				case "borda":
+					m_sums[index] += length - 1 - position;
+					break;
+				case "rrf":
+					m_sums[index] += 1.0 / (m_rrfK + position + 1);
+					break;
+				case "median":
+				case "trimmed_mean":
+					// An attribute missing from earlier rankings may be behind them:
+					// its merits in those rankings are 0, as they are summed
+					if (m_nRankings >= m_merits[index].length) {
+						m_merits[index] = Arrays.copyOf(m_merits[index], Math.max(2 * m_merits[index].length, m_nRankings + 1));
+					}
+					m_merits[index][m_nRankings] = ranking[position][1];
+					break;
+				default:
+					m_sums[index] += ranking[position][1];
+					break;
+			}
+		}
+		m_nRankings++;
+	}
+
+	public int size() {
+		return m_nRankings;
+	}
+
+	// Aggregate score of an attribute, the higher the better
+	private double score(final int index) {
+		switch (m_method) {
+			case "borda":
+			case "rrf":
+				return m_sums[index];
+			case "median":
+			case "trimmed_mean":
+				final double[] merits = Arrays.copyOf(m_merits[index], m_nRankings);
+				Arrays.sort(merits);
+				if (m_method.equals("median")) {
+					final int middle = merits.length / 2;
+					return merits.length % 2 == 1 ? merits[middle] : (merits[middle - 1] + merits[middle]) / 2;
+				}
+				final int nTrimmed = (int) Math.floor(merits.length * m_trim);
+				double sum = 0;
+				for (int i = nTrimmed; i < merits.length - nTrimmed; i++) {sum += merits[i];}
+				return sum / (merits.length - 2 * nTrimmed);
+			default:
+				return m_sums[index] / m_nRankings;
+		}
+	}
+
+	// Attributes with their aggregate score, from best to worst.
+	// Ties are in the order attributes have in the dataset.
+	public double[][] ranking() {
+		int nRanked = 0;
+		for (final boolean ranked : m_ranked) {if (ranked) {nRanked++;}}
+		final int[]    indexes = new int[nRanked];
+		final double[] scores  = new double[nRanked];
+		for (int a = 0, i = 0; a < m_ranked.length; a++) {
+			if (m_ranked[a]) {indexes[i] = a; scores[i] = score(a); i++;}
+		}
+		final int[] order = sortDescending(scores);
+		final double[][] ranking = new double[nRanked][2];
+		for (int i = 0; i < nRanked; i++) {
+			ranking[i][0] = indexes[order[i]];
+			ranking[i][1] = scores[order[i]];
+		}
+		return ranking;
+	}
+
+	// Indexes of the best 'k' attributes
+	public int[] top(final int k) {
+		final double[][] ranking = ranking();
+		final int[] top = new int[Math.min(k, ranking.length)];
+		for (int i = 0; i < top.length; i++) {top[i] = (int) ranking[i][0];}
+		return top;
+	}
+
+	// Positions of the values from the highest to the lowest. Merge sort is
+	// stable, so equal values keep their order.
+	private static int[] sortDescending(final double[] values) {
+		int[] order = new int[values.length];
+		int[] buffer = new int[values.length];
+		for (int i = 0; i < order.length; i++) {order[i] = i;}
+		for (int width = 1; width < order.length; width *= 2) {
+			for (int from = 0; from < order.length; from += 2 * width) {
+				final int middle = Math.min(from + width, order.length);
+				final int to     = Math.min(from + 2 * width, order.length);
+				int left = from, right = middle, out = from;
+				while (left < middle && right < to) {
+					buffer[out++] = values[order[right]] > values[order[left]] ? order[right++] : order[left++];
+				}
+				while (left < middle) {buffer[out++] = order[left++];}
+				while (right < to)    {buffer[out++] = order[right++];}
+			}
+			final int[] swap = order; order = buffer; buffer = swap;
+		}
+		return order;
+	}
+}
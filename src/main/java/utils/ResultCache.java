@@ -0,0 +1,104 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Results of evaluations kept in a folder across runs, so that running again
+// an experiment with a few settings changed computes only what is new.
+// Results are addressed by their content: the key of a result lists
+// everything it depends on (dataset hash, classifier and options, folds,
+// run, seed...), and its file is named after the SHA-1 digest of the key.
+// Files hold the key too, so a digest collision is a miss and not a wrong
+// result. They are written to a temporary file and then renamed, so a run
+// stopping while writing leaves no partial result.
+public class ResultCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	final File m_dir;
+
+	final AtomicLong m_hits   = new AtomicLong();
+	final AtomicLong m_misses = new AtomicLong();
+
+	public ResultCache(final File dir) {
+		m_dir = dir;
+		m_dir.mkdirs();
+	}
+
+	// Result of the key, null if it was never stored
+	public Object get(final String key) {
+		final File f = file(key);
+		if (f.isFile()) {
+			try {
+				final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+				try {
+					if (key.equals(in.readObject())) {
+						final Object result = in.readObject();
+						m_hits.incrementAndGet();
+						return result;
+					}
+				} finally {in.close();}
+			} catch (Exception e) {
+				System.out.println("Warning, couldn't read cached result " + f + ": " + e);
+			}
+		}
+		m_misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(final String key, final Serializable result) throws IOException {
+		final File f = file(key);
+		f.getParentFile().mkdirs();
+		final File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+		final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeObject(key);
+			out.writeObject(result);
+		} finally {out.close();}
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("Couldn't store cached result " + f);
+		}
+	}
+
+	// Results are spread over subfolders by the first byte of their digest
+	private File file(final String key) {
+		final String digest = digest(key);
+		return new File(new File(m_dir, digest.substring(0, 2)), digest.substring(2));
+	}
+
+	private static String digest(final String key) {
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+			final StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (final byte b : hash) {hex.append(String.format("%02x", b & 0xff));}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public long hits() {
+		return m_hits.get();
+	}
+
+	public long misses() {
+		return m_misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Result cache " + m_dir + ": " + hits() + " hits, " + misses() + " misses";
+	}
+}
@@ -0,0 +1,165 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+// Merits of attribute subsets already evaluated, so that evaluating the same
+// subset of the same dataset with the same evaluator (options and seed
+// included) costs a lookup instead of a cross validation. Holds at most
+// 'maxSize' merits, dropping the least recently used ones, and can be saved
+// to a file to be reused by a following run.
+public class SubsetMeritCache {
+
+	private static final int MAGIC = 0x53544d43;
+
+	private static class Key {
+		final long   m_fingerprint;
+		final String m_spec;
+		final BitSet m_subset;
+		final int    m_hash;
+
+		Key(final long fingerprint, final String spec, final BitSet subset) {
+			m_fingerprint = fingerprint;
+			m_spec        = spec;
+			m_subset      = subset;
+			m_hash = 31 * (31 * (int) (fingerprint ^ (fingerprint >>> 32)) + spec.hashCode()) + subset.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hash;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) {return false;}
+			final Key other = (Key) o;
+			return m_fingerprint == other.m_fingerprint
+					&& m_spec.equals(other.m_spec)
+					&& m_subset.equals(other.m_subset);
+		}
+	}
+
+	final int m_maxSize;
+	final LinkedHashMap<Key, Double> m_merits;
+
+	final AtomicLong m_hits   = new AtomicLong();
+	final AtomicLong m_misses = new AtomicLong();
+
+	public SubsetMeritCache(final int maxSize) {
+		m_maxSize = maxSize;
+		// Access order: the eldest entry is the least recently used
+		m_merits = new LinkedHashMap<Key, Double>(16, 0.75f, true) {
+			static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Key, Double> eldest) {
+				return size() > m_maxSize;
+			}
+		};
+	}
+
+	// Merit of the subset, null if it was never evaluated
+	public Double get(final long fingerprint, final String spec, final BitSet subset) {
+		final Double merit;
+		synchronized (m_merits) {merit = m_merits.get(new Key(fingerprint, spec, subset));}
+		if (merit == null) {m_misses.incrementAndGet();} else {m_hits.incrementAndGet();}
+		return merit;
+	}
+
+	public void put(final long fingerprint, final String spec, final BitSet subset, final double merit) {
+		if (m_maxSize <= 0) {return;}
+		final Key key = new Key(fingerprint, spec, (BitSet) subset.clone());
+		synchronized (m_merits) {m_merits.put(key, merit);}
+	}
+
+	public long hits() {
+		return m_hits.get();
+	}
+
+	public long misses() {
+		return m_misses.get();
+	}
+
+	public int size() {
+		synchronized (m_merits) {return m_merits.size();}
+	}
+
+	@Override
+	public String toString() {
+		return "Subset merit cache: " + size() + " merits, " + hits() + " hits, " + misses() + " misses";
+	}
+
+	// Hash of header and values of a dataset: datasets with the same
+	// fingerprint are taken as equal
+	public static long fingerprint(final Instances data) {
+		long hash = 0xcbf29ce484222325L;
+		hash = mix(hash, data.numAttributes());
+		hash = mix(hash, data.classIndex());
+		for (int a = 0; a < data.numAttributes(); a++) {
+			hash = mix(hash, data.attribute(a).toString().hashCode());
+		}
+		final int nInstances = data.numInstances();
+		final int nAttributes = data.numAttributes();
+		for (int i = 0; i < nInstances; i++) {
+			final Instance in = data.instance(i);
+			hash = mix(hash, Double.doubleToLongBits(in.weight()));
+			for (int a = 0; a < nAttributes; a++) {
+				hash = mix(hash, Double.doubleToLongBits(in.value(a)));
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(final long hash, final long value) {
+		return (hash ^ value) * 0x100000001b3L;
+	}
+
+	// Merits are saved from the least to the most recently used, so
+	// loading them back restores the same order
+	public void save(final File f) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			synchronized (m_merits) {
+				out.writeInt(MAGIC);
+				out.writeInt(m_merits.size());
+				for (final Map.Entry<Key, Double> entry : m_merits.entrySet()) {
+					final Key key = entry.getKey();
+					out.writeLong(key.m_fingerprint);
+					out.writeUTF(key.m_spec);
+					final long[] words = key.m_subset.toLongArray();
+					out.writeInt(words.length);
+					for (final long word : words) {out.writeLong(word);}
+					out.writeDouble(entry.getValue());
+				}
+			}
+		} finally {out.close();}
+	}
+
+	public void load(final File f) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {throw new IOException(f + " is not a subset merit cache.");}
+			final int nMerits = in.readInt();
+			for (int i = 0; i < nMerits; i++) {
+				final long fingerprint = in.readLong();
+				final String spec = in.readUTF();
+				final long[] words = new long[in.readInt()];
+				for (int w = 0; w < words.length; w++) {words[w] = in.readLong();}
+				put(fingerprint, spec, BitSet.valueOf(words), in.readDouble());
+			}
+		} finally {in.close();}
+	}
+}
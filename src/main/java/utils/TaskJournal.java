@@ -0,0 +1,181 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+import weka.core.OptionHandler;
+
+// Durable record of the tasks of an experiment completed so far, so that a
+// run which stopped (or crashed) can be resumed without computing them again.
+// Every completed task appends a line "key, fingerprint, payload" to the
+// journal file, which is flushed to disk before the task is considered done.
+// Keys tell the tasks apart by what their results depend on (inputs and
+// settings); the fingerprint is the one of their output: of the payload for
+// tasks whose result is kept in the journal itself, such as rankings, of the
+// output file for the others. On resume a task is done only when its entry
+// is there and its output still has the recorded fingerprint: entries torn
+// by a crash and output files gone or changed since are done again.
+public class TaskJournal {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Fingerprint of a file that doesn't exist
+	public static final String NO_FILE = "none";
+
+	final File m_file;
+	final FileOutputStream m_out;
+	// Fingerprint and payload of every task recorded, by key
+	final ConcurrentHashMap<String, String[]> m_entries = new ConcurrentHashMap<String, String[]>();
+
+	// When not resuming, entries of previous runs are discarded
+	public TaskJournal(final File file, final boolean resume) throws IOException {
+		m_file = file;
+		if (resume && file.exists()) {
+			load();
+			if (m_entries.size() > 0) {
+				System.out.println("Resuming from " + file + ", " + m_entries.size() + " tasks recorded");
+			}
+		}
+		final boolean tornLine = resume && file.length() > 0 && !endsWithNewline(file);
+		m_out = new FileOutputStream(file, resume);
+		// Following entries must not be appended to a line left incomplete
+		if (tornLine) {m_out.write('\n');}
+	}
+
+	private static boolean endsWithNewline(final File f) throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			in.seek(f.length() - 1);
+			return in.read() == '\n';
+		} finally {in.close();}
+	}
+
+	private void load() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(m_file), UTF8));
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				final String[] fields = line.split("\t", -1);
+				// A line not complete was being written when the run stopped
+				if (fields.length == 3 && (fields[2].isEmpty() || fields[1].equals(fingerprint(fields[2])))) {
+					m_entries.put(fields[0], new String[] {fields[1], fields[2]});
+				}
+				line = reader.readLine();
+			}
+		} finally {reader.close();}
+	}
+
+	public synchronized void record(final String key, final String fingerprint, final String payload) throws IOException {
+		final String line = key + "\t" + fingerprint + "\t" + payload + "\n";
+		m_out.write(line.getBytes(UTF8));
+		m_out.flush();
+		m_out.getFD().sync();
+		m_entries.put(key, new String[] {fingerprint, payload});
+	}
+
+	// Task whose output is a ranking, kept in the journal
+	public void record(final String key, final double[][] ranking) throws IOException {
+		record(key, encode(ranking));
+	}
+
+	// Task whose output is a file, or nothing when the file doesn't exist
+	public void record(final String key, final File output) throws IOException {
+		record(key, fingerprint(output), "");
+	}
+
+	// Task whose output is a value, kept in the journal
+	public void record(final String key, final String payload) throws IOException {
+		record(key, fingerprint(payload), payload);
+	}
+
+	// Value recorded for the task, null if it must be computed
+	public String payload(final String key) {
+		final String[] entry = m_entries.get(key);
+		return entry == null ? null : entry[1];
+	}
+
+	// Ranking recorded for the task, null if it must be computed
+	public double[][] ranking(final String key) {
+		final String[] entry = m_entries.get(key);
+		return entry == null ? null : decode(entry[1]);
+	}
+
+	// Whether the task was recorded with its output file as it is now
+	public boolean isDone(final String key, final File output) throws IOException {
+		final String[] entry = m_entries.get(key);
+		return entry != null && entry[0].equals(fingerprint(output));
+	}
+
+	public synchronized void close() throws IOException {
+		m_out.close();
+	}
+
+	// Key of a task from the values it depends on
+	public static String key(final Object... parts) {
+		final StringBuilder key = new StringBuilder();
+		for (final Object part : parts) {
+			if (key.length() > 0) {key.append('/');}
+			key.append(String.valueOf(part).replaceAll("[\t\r\n]", " "));
+		}
+		return key.toString();
+	}
+
+	// Class and options of an evaluator or classifier
+	public static String spec(final Object scheme) {
+		if (scheme instanceof OptionHandler) {
+			return scheme.getClass().getName() + " " + weka.core.Utils.joinOptions(((OptionHandler) scheme).getOptions());
+		}
+		return scheme.getClass().getName();
+	}
+
+	public static String fingerprint(final String text) {
+		long hash = 0xcbf29ce484222325L;
+		final byte[] bytes = text.getBytes(UTF8);
+		for (final byte b : bytes) {hash = (hash ^ (b & 0xff)) * 0x100000001b3L;}
+		return Long.toHexString(hash);
+	}
+
+	public static String fingerprint(final File f) throws IOException {
+		if (!f.isFile()) {return NO_FILE;}
+		long hash = 0xcbf29ce484222325L;
+		final byte[] buffer = new byte[1 << 16];
+		final InputStream in = new FileInputStream(f);
+		try {
+			int n = in.read(buffer);
+			while (n >= 0) {
+				for (int i = 0; i < n; i++) {hash = (hash ^ (buffer[i] & 0xff)) * 0x100000001b3L;}
+				n = in.read(buffer);
+			}
+		} finally {in.close();}
+		return Long.toHexString(hash);
+	}
+
+	// Rankings are written as "index:merit" pairs, merits in their exact decimal form
+	static String encode(final double[][] ranking) {
+		final StringBuilder text = new StringBuilder(ranking.length * 8);
+		for (final double[] attribute : ranking) {
+			if (text.length() > 0) {text.append(',');}
+			text.append((int) attribute[0]).append(':').append(attribute[1]);
+		}
+		return text.toString();
+	}
+
+	static double[][] decode(final String text) {
+		if (text.isEmpty()) {return new double[0][2];}
+		final String[] pairs = text.split(",");
+		final double[][] ranking = new double[pairs.length][2];
+		for (int i = 0; i < pairs.length; i++) {
+			final int colon = pairs[i].indexOf(':');
+			ranking[i][0] = Integer.parseInt(pairs[i].substring(0, colon));
+			ranking[i][1] = Double.parseDouble(pairs[i].substring(colon + 1));
+		}
+		return ranking;
+	}
+}
@@ -1,26 +1,30 @@
 package utils;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Map;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.converters.ArffLoader;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Remove;
-import weka.filters.unsupervised.attribute.Reorder;
 
 public class Utils {
 	
@@ -81,73 +85,39 @@ public class Utils {
 		return requireDir(dirPath, true);
 	}
 	
+	// Apply the sorting received as an array of feature key / feature merit,
+	// keeping at most the best 'nFeatures' features plus the class. Result is
+	// a view over the dataset: no row is copied.
 	public static Instances reorderInstances (
 			final Instances data, 
-			final List<Future<double[][]>> sortedFeatures) throws InterruptedException, ExecutionException {
-		final double[][][] rankings = new double[sortedFeatures.size()][][];
-    	int i = 0;
-    	for (final Future<double[][]> r : sortedFeatures) {
-    		rankings[i] = r.get(); i++;
-    	}; return reorderInstances(data, rankings);
+			final double[][] sortedFeatures, 
+			final int nFeatures) {
+		final int nColumns = Math.min(nFeatures, sortedFeatures.length);
+		final int[] columns = new int[nColumns + 1];
+		for (int i = 0; i < nColumns; i++) {columns[i] = (int) sortedFeatures[i][0];}
+		// Add class variable, which would be excluded otherwise
+		columns[nColumns] = data.classIndex();
+		return new ProjectedInstances(data, columns, data.relationName());
 	}
 	
-	private static Instances reorderInstances (
+	public static Instances reorderInstances (
 			final Instances data, 
-			final double[][][] sortedFeatures) {
-		final double[][] avgRanking = Utils.calcAvgRanking(sortedFeatures);
-		return reorderInstances(data, avgRanking);
-	}
-	
-	// Apply the sorting received as an array of feature key / feature merit.
-	private static Instances reorderInstances (
-			Instances data, 
 			final double[][] sortedFeatures) {
-		final Reorder r = new Reorder();
-		
-		String indexes = "";
-		for (final double [] indxs : sortedFeatures) {
-			if (!indexes.equals("")) {indexes+= ",";}
-			indexes+= (int)(indxs[0] + 1);
-			// Add class variable, which would be excluded otherwise
-		} ; indexes+= ",last";
-		
-		try {r.setAttributeIndices(indexes);} 
-		  catch (IllegalArgumentException e) {
-			e.printStackTrace();
-			return null;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
-		
-		try {r.setInputFormat(data);} 
-		  catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
-		
-		try {data = Filter.useFilter(data, r);} 
-		  catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
-		
-		return data;
+		return reorderInstances(data, sortedFeatures, sortedFeatures.length);
 	}
 	
+	// View over the first 'nFeatures' features, plus the class variable
 	public static Instances keepNFeatures (
-			Instances data, 
-			final int nFeatures) throws Exception {
-		final Remove r = new Remove();
-		// From first to nFeatures feature included, plus the class variable
-		r.setAttributeIndices("first-"+ nFeatures + ",last");
-		r.setInvertSelection(true);
-		r.setInputFormat(data);
-		data = Filter.useFilter(data, r);
-		
-		assert(data.numAttributes() == nFeatures + 1);
-		
-		return data;
+			final Instances data, 
+			final int nFeatures) {
+		final int classIndex = data.classIndex();
+		final int nColumns = Math.min(nFeatures, data.numAttributes() - 1);
+		final int[] columns = new int[nColumns + 1];
+		for (int a = 0, i = 0; i < nColumns; a++) {
+			if (a != classIndex) {columns[i++] = a;}
+		}
+		columns[nColumns] = classIndex;
+		return new ProjectedInstances(data, columns, data.relationName());
 	}
 	
 	static File keepNFeatures (
@@ -164,8 +134,7 @@ public class Utils {
 		if (outFile == null) {
 			outFile = File.createTempFile("reducedDataset",".txt");
 		}
-		Instances data = new Instances(new BufferedReader(new FileReader(inFile)));
-		data = keepNFeatures(data, nFeatures);
+		final Instances data = keepNFeatures(readFile(inFile), nFeatures);
 		data.setRelationName(data.relationName() + "_" + nFeatures + "features");
 		return saveInstances(data, outFile);
 	}
@@ -187,7 +156,9 @@ public class Utils {
 	
 	public static Instances readFile (final File f) {
 		try {
-			final Instances instances = new Instances(new BufferedReader(new FileReader(f)));
+			// Format is recognized from the content, not from the name
+			final Instances instances = ColumnarInstances.isColumnar(f) ? 
+					ColumnarInstances.read(f) : new Instances(reader(f));
 			instances.setClassIndex(instances.numAttributes() - 1);
 			return instances;
 		} catch (FileNotFoundException e) {
@@ -199,6 +170,27 @@ public class Utils {
 		}
 	}
 	
+	// Files written compressed by ArffWriter are read transparently
+	private static Reader reader(final File f) throws IOException {
+		if (f.getName().endsWith(".gz")) {
+			return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(f), 1 << 16)));
+		}
+		return new BufferedReader(new FileReader(f));
+	}
+	
+	// Rows and attributes of a dataset file, without keeping its rows in memory
+	public static int[] datasetSize(final File f) throws IOException {
+		if (ColumnarInstances.isColumnar(f)) {return ColumnarInstances.size(f);}
+		final Reader in = reader(f);
+		try {
+			final ArffLoader.ArffReader arff = new ArffLoader.ArffReader(in, 1);
+			final Instances structure = arff.getStructure();
+			int nRows = 0;
+			while (arff.readInstance(structure) != null) {nRows++;}
+			return new int[] {nRows, structure.numAttributes()};
+		} finally {in.close();}
+	}
+	
 	public static Instances readFile (final String f) {
 		return readFile(new File(f));
 	}
@@ -206,30 +198,94 @@ public class Utils {
 	public static File saveInstances (
 			final Instances data, 
 			final File outFile) throws IOException {
-		outFile.createNewFile();
-		final BufferedWriter writer = new BufferedWriter(new FileWriter(outFile));
-		writer.write(data.toString()); writer.flush(); writer.close();
+		// Instances are streamed to the file, the whole text is never built
+		final DatasetWriter writer = datasetWriter(data, outFile);
+		try {
+			final int nInstances = data.numInstances();
+			for (int i = 0; i < nInstances; i++) {writer.write(data.instance(i));}
+		} finally {writer.close();}
 		return outFile;
 	}
+	
+	// Format is chosen by the extension of the file
+	public static DatasetWriter datasetWriter(
+			final Instances header, 
+			final File outFile) throws IOException {
+		if (outFile.getName().endsWith(ColumnarInstances.EXTENSION) && ColumnarInstances.canWrite(header)) {
+			return new ColumnarInstances.Writer(header, outFile);
+		}
+		return new ArffWriter(header, outFile);
+	}
 
 	public static File saveInstances (
 			final Instances data, 
 			final String filename) throws IOException {
 		final File outFile = new File(filename);
-		final String relationName = outFile.getName().replace(".arff", "");
+		final String relationName = stripExtension(outFile.getName());
 		data.setRelationName(relationName);
 		return saveInstances(data, outFile);
 	}
 		
-	static File saveReorderInstances(
-			Instances data, 
-			final List<Future<double[][]>> rankedAttributes, 
-			final String outFileName) 
-			throws InterruptedException, ExecutionException, IOException {
-		data = Utils.reorderInstances(data, rankedAttributes);
-    	return Utils.saveInstances(data, outFileName);
+	// Feature selection results are rankings of features, stored as their names, one per line
+	public static final String RANKING_EXTENSION = ".ranking";
+	
+	public static File saveRanking(
+			final List<String> ranking, 
+			final File outFile) throws IOException {
+		final PrintWriter writer = new PrintWriter(outFile, "UTF-8");
+		for (final String name : ranking) {writer.println(name);}
+		writer.close();
+		return outFile;
 	}
 	
+	public static List<String> readRanking(final File f) throws IOException {
+		final List<String> ranking = new ArrayList<String>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+		String line = reader.readLine();
+		while (line != null) {
+			if (line.length() > 0) {ranking.add(line);}
+			line = reader.readLine();
+		}
+		reader.close();
+		return ranking;
+	}
+	
+	// View over the best 'nFeatures' features of a ranking plus the class. Features 
+	// keep their order in the dataset, as they would if removed with a filter.
+	public static Instances projectFeatures(
+			final Instances data, 
+			final List<String> ranking, 
+			final int nFeatures, 
+			final String relationName) throws Exception {
+		// Instances.attribute(String) goes through every attribute at each call.
+		// Filled backwards, so the first attribute of a name wins as it does there.
+		final int nAttributes = data.numAttributes();
+		final Map<String, Integer> indexes = new HashMap<String, Integer>(2 * nAttributes);
+		for (int a = nAttributes - 1; a >= 0; a--) {indexes.put(data.attribute(a).name(), a);}
+		final int nColumns = Math.min(nFeatures, ranking.size());
+		final int[] columns = new int[nColumns + 1];
+		for (int i = 0; i < nColumns; i++) {
+			final Integer index = indexes.get(ranking.get(i));
+			if (index == null) {
+				throw new Exception("Feature " + ranking.get(i) + " not found in dataset " + data.relationName());
+			}
+			columns[i] = index;
+		}
+		Arrays.sort(columns, 0, nColumns);
+		columns[nColumns] = data.classIndex();
+		return new ProjectedInstances(data, columns, relationName);
+	}
+	
+	// Name of a dataset or ranking file without the extension of its format
+	public static String stripExtension(final String fileName) {
+		for (final String extension : new String[] {".arff.gz", ".arff", ColumnarInstances.EXTENSION, RANKING_EXTENSION}) {
+			if (fileName.endsWith(extension)) {
+				return fileName.substring(0, fileName.length() - extension.length());
+			}
+		}
+		return fileName;
+	}
+		
 	// These comparators allow to sort bi-dimensional arrays by index or value
 	final static Comparator<double[]> INDEX_ARRAY_COMPARATOR = new Comparator<double[]>() {
         @Override
@@ -274,37 +330,4 @@ public class Utils {
     	System.out.println();
     }
 	
-	private static double[][] calcAvgRanking(final double[][][] rankings) {
-        final int nRankings = rankings.length;
-        assert (nRankings > 0);
-        final int nFeatures = rankings[0].length;
-        assert (nFeatures > 0);
-        assert (rankings[0][0].length == 2);
-        
-        // Sort ranking by index, so features are in the 
-        // order they were originally in the dataset
-		for (int i = 0; i < nRankings; i++) {
-			sortByIndex(rankings[i]);
-		}
-
-		// Sum ranking values for each feature
-		final double[][] avgRanking = rankings[0];
-		for (int i = 1; i < nRankings; i++) {
-			final double[][] ranking = rankings[i];
-			for (int j = 0; j < nFeatures; j++) {
-				avgRanking[j][1]+= ranking[j][1];
-			}
-		}
-		
-		// Average ranking
-		for (int j = 0; j < nFeatures; j++) {
-			avgRanking[j][1] /= nRankings;
-		}
-		
-		// Sort array by average ranking value
-		sortByValue(avgRanking);
-			
-		return avgRanking;
-	}
-	
 }
\ No newline at end of file